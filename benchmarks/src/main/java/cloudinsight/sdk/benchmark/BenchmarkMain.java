@@ -0,0 +1,43 @@
+package cloudinsight.sdk.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the release comparison suite: every client method with the GC profiler for bytes/op, then the sender
+ * throughput benchmark with 1 to 64 producer threads. Any arguments are passed to JMH as is instead, e.g.
+ * {@code java -jar benchmarks.jar ClientMethodsBenchmark -prof gc}.
+ */
+public final class BenchmarkMain {
+
+    private static final int[] PRODUCER_THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        if (args.length > 0) {
+            new Runner(new CommandLineOptions(args)).run();
+            return;
+        }
+
+        Options methods = new OptionsBuilder()
+                .include(ClientMethodsBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(methods).run();
+
+        for (int threads : PRODUCER_THREADS) {
+            Options throughput = new OptionsBuilder()
+                    .include(SenderThroughputBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(throughput).run();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package cloudinsight.sdk.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cloudinsight.sdk.CloudInsightStatsDClient;
+import cloudinsight.sdk.OverflowPolicy;
+import cloudinsight.sdk.Timer;
+
+/**
+ * Caller-side cost of every {@code StatsDClient} method, in ns/op. Run with {@code -prof gc} (as
+ * {@link BenchmarkMain} does) to get bytes allocated per call from {@code gc.alloc.rate.norm}.
+ * <p>
+ * The client blocks callers while its queue is full rather than dropping lines, so every measured call is queued,
+ * encoded and sent; a method cheaper than the sender thread reports the rate at which the sender drains the queue.
+ * The sink prints how many lines arrived and how many the client dropped at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientMethodsBenchmark {
+
+    private static final String[] TAGS = {"table:users", "db:primary", "region:cn-north"};
+
+    /** Client configuration: none, a prefix, constant tags, or both. */
+    @Param({"plain", "prefix", "constantTags", "prefixAndConstantTags"})
+    public String                 config;
+
+    private UdpSink                  sink;
+    private CloudInsightStatsDClient client;
+    private Timer                    timer;
+    private long                     value;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sink = new UdpSink();
+        CloudInsightStatsDClient.Builder builder = CloudInsightStatsDClient.builder()
+                .hostname("localhost")
+                .port(sink.port())
+                .overflowPolicy(OverflowPolicy.BLOCK);
+        if (config.startsWith("prefix")) {
+            builder.prefix("my.service");
+        }
+        if (config.endsWith("onstantTags")) {
+            builder.constantTags("env:bench", "host:localhost");
+        }
+        client = builder.build();
+        timer = client.timer("latency", TAGS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        System.out.printf("%nsink received %d lines in %d packets, client dropped %d%n",
+                sink.lines(), sink.packets(), client.getDroppedMessages());
+        sink.close();
+    }
+
+    @Benchmark
+    public void count() {
+        client.count("requests", ++value);
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        client.count("requests", ++value, TAGS);
+    }
+
+    @Benchmark
+    public void increment() {
+        client.increment("requests");
+    }
+
+    @Benchmark
+    public void incrementWithTags() {
+        client.increment("requests", TAGS);
+    }
+
+    @Benchmark
+    public void gaugeLong() {
+        client.gauge("connections", ++value);
+    }
+
+    @Benchmark
+    public void gaugeLongWithTags() {
+        client.gauge("connections", ++value, TAGS);
+    }
+
+    @Benchmark
+    public void gaugeDouble() {
+        client.gauge("load", ++value * 0.125);
+    }
+
+    @Benchmark
+    public void gaugeDoubleWithTags() {
+        client.gauge("load", ++value * 0.125, TAGS);
+    }
+
+    @Benchmark
+    public void time() {
+        client.time("latency", ++value & 1023);
+    }
+
+    @Benchmark
+    public void timeWithTags() {
+        client.time("latency", ++value & 1023, TAGS);
+    }
+
+    @Benchmark
+    public void timeNanos() {
+        client.recordExecutionTimeNanos("latency", ++value & 1048575);
+    }
+
+    /** A pooled scope around no work; {@code gc.alloc.rate.norm} should stay at zero bytes per operation. */
+    @Benchmark
+    public void timerScope() {
+        Timer.Scope scope = timer.start();
+        try {
+            ++value;
+        } finally {
+            scope.close();
+        }
+    }
+
+    @Benchmark
+    public void histogramLong() {
+        client.histogram("size", ++value & 1023);
+    }
+
+    @Benchmark
+    public void histogramLongWithTags() {
+        client.histogram("size", ++value & 1023, TAGS);
+    }
+
+    @Benchmark
+    public void histogramDouble() {
+        client.histogram("ratio", (++value & 1023) / 1024d);
+    }
+
+    @Benchmark
+    public void histogramDoubleWithTags() {
+        client.histogram("ratio", (++value & 1023) / 1024d, TAGS);
+    }
+}
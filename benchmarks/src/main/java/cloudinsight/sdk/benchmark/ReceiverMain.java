@@ -0,0 +1,52 @@
+package cloudinsight.sdk.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import cloudinsight.sdk.LocalStatsDReceiver;
+
+/**
+ * Runs a {@link LocalStatsDReceiver} that keeps no lines and prints the lines, packets and malformed lines it
+ * received per second, e.g. {@code java -cp benchmarks.jar cloudinsight.sdk.benchmark.ReceiverMain 8251 60}. The
+ * arguments are the port, 8251 by default, and how many seconds to run, until the process is stopped by default.
+ */
+public final class ReceiverMain {
+
+    private ReceiverMain() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8251;
+        long seconds = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        final LocalStatsDReceiver receiver = new LocalStatsDReceiver(port, 0);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                try {
+                    receiver.close();
+                } catch (IOException e) {
+                    // exiting anyway
+                }
+            }
+        }, "receiver-shutdown"));
+        System.out.printf("Receiving on port %d%n", receiver.port());
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        long lines = 0;
+        long packets = 0;
+        long malformed = 0;
+        try {
+            while (seconds == 0 || System.nanoTime() - deadline < 0) {
+                Thread.sleep(1000L);
+                long nowLines = receiver.getMetricLines() + receiver.getEventAndServiceCheckLines();
+                long nowPackets = receiver.getPackets();
+                long nowMalformed = receiver.getMalformedLines();
+                System.out.printf("%,d lines/s, %,d packets/s, %,d malformed lines/s, %,d series%n",
+                        nowLines - lines, nowPackets - packets, nowMalformed - malformed, receiver.allSeries().size());
+                lines = nowLines;
+                packets = nowPackets;
+                malformed = nowMalformed;
+            }
+        } finally {
+            receiver.close();
+        }
+    }
+}
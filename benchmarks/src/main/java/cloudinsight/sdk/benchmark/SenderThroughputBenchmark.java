@@ -0,0 +1,73 @@
+package cloudinsight.sdk.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cloudinsight.sdk.CloudInsightStatsDClient;
+import cloudinsight.sdk.OverflowPolicy;
+
+/**
+ * End-to-end throughput from producer threads through the sender threads to a local UDP sink, in lines per second.
+ * <p>
+ * The client blocks producers when its bounded queue is full, so once the queue fills the producer rate is the rate
+ * at which the senders drain it. Vary the producer count with {@code -t} ({@link BenchmarkMain} runs 1 to 64). The
+ * sink prints how many lines and packets actually arrived at the end of each trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class SenderThroughputBenchmark {
+
+    private static final String[] TAGS = {"table:users", "db:primary"};
+
+    @Param({"1", "4"})
+    public int                       senderThreads;
+
+    private UdpSink                  sink;
+    private CloudInsightStatsDClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        sink = new UdpSink();
+        client = CloudInsightStatsDClient.builder()
+                .prefix("my.service")
+                .hostname("localhost")
+                .port(sink.port())
+                .queueCapacity(4096)
+                .senderThreads(senderThreads)
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .offerTimeout(1, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        client.stop();
+        System.out.printf("%nsink received %d lines in %d packets, client dropped %d%n",
+                sink.lines(), sink.packets(), client.getDroppedMessages());
+        sink.close();
+    }
+
+    @Benchmark
+    public void countWithTags() {
+        client.count("requests", 1, TAGS);
+    }
+}
@@ -0,0 +1,67 @@
+package cloudinsight.sdk.benchmark;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local UDP endpoint that receives and counts statsd lines, standing in for the agent.
+ */
+final class UdpSink implements Runnable {
+
+    private final DatagramChannel channel;
+    private final ByteBuffer      buffer   = ByteBuffer.allocateDirect(65536);
+    private final AtomicLong      lines    = new AtomicLong();
+    private final AtomicLong      packets  = new AtomicLong();
+    private final Thread          thread;
+
+    UdpSink() throws IOException {
+        channel = DatagramChannel.open();
+        channel.socket().setReceiveBufferSize(8 * 1024 * 1024);
+        channel.bind(new InetSocketAddress("localhost", 0));
+        thread = new Thread(this, "udp-sink");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int port() {
+        return channel.socket().getLocalPort();
+    }
+
+    long lines() {
+        return lines.get();
+    }
+
+    long packets() {
+        return packets.get();
+    }
+
+    public void run() {
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                long received = buffer.hasRemaining() ? 1 : 0;
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() == '\n') {
+                        received++;
+                    }
+                }
+                lines.addAndGet(received);
+                packets.incrementAndGet();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // keep receiving
+            }
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
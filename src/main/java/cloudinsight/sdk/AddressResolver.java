@@ -0,0 +1,66 @@
+package cloudinsight.sdk;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Keeps the agent address resolved off the send path. Senders read the cached address with one volatile read;
+ * {@link #refresh()} runs on the client's scheduler, resolves the host name again and swaps the cached address in
+ * one write, so a send goes either to the old address or to the new one. A failed lookup keeps the previous address.
+ * <p>
+ * Lookups still go through the JVM's own cache, whose TTL is the {@code networkaddress.cache.ttl} security
+ * property; keep it at or below the refresh interval to see changes in time.
+ */
+final class AddressResolver {
+
+    private final String                     hostname;
+    private final int                        port;
+    private final ClientTelemetry            telemetry;
+    private volatile InetSocketAddress       address;
+
+    AddressResolver(String hostname, int port, ClientTelemetry telemetry) {
+        this.hostname = hostname;
+        this.port = port;
+        this.telemetry = telemetry;
+        try {
+            refresh();
+        } catch (UnknownHostException e) {
+            // like new InetSocketAddress(hostname, port): sends fail until a refresh succeeds
+            this.address = InetSocketAddress.createUnresolved(hostname, port);
+        }
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * @return true if the address changed
+     */
+    boolean refresh() throws UnknownHostException {
+        long start = System.nanoTime();
+        InetAddress resolved;
+        try {
+            resolved = InetAddress.getByName(hostname);
+        } catch (UnknownHostException e) {
+            telemetry.resolved(System.nanoTime() - start, false);
+            throw e;
+        }
+        telemetry.resolved(System.nanoTime() - start, true);
+        InetSocketAddress previous = address;
+        if (previous != null && !previous.isUnresolved() && previous.getAddress().equals(resolved)) {
+            return false;
+        }
+        address = new InetSocketAddress(resolved, port);
+        return true;
+    }
+
+    String hostname() {
+        return hostname;
+    }
+
+    int port() {
+        return port;
+    }
+}
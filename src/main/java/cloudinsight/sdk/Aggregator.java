@@ -0,0 +1,571 @@
+package cloudinsight.sdk;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Folds counters and gauges, and optionally timers and histograms, in memory between flushes, and optionally drops
+ * repeated set values.
+ * <p>
+ * Counts for the same aspect and tags are summed in a striped {@link LongAdder}, gauges keep the last value, and
+ * timer and histogram samples go into a {@link QuantileSketch} that is flushed as count, min, max, avg and
+ * p50/p95/p99 series. Set values are remembered until the next flush, so each one is sent once per flush interval.
+ * Tags are compared as sets, so the same tags in another order or repeated feed the same series, which is sent with
+ * its tags sorted. Lookups go through a per-thread probe key, so recording an already known series allocates
+ * nothing and takes no lock. A flush only emits the series that changed since the previous flush.
+ * <p>
+ * At most {@code maxSeries} series are kept; calls for further series are not aggregated and go out line by line,
+ * so high-cardinality tags cost bandwidth instead of memory. Series that stay unchanged for
+ * {@value #IDLE_FLUSHES_BEFORE_EVICTION} flushes are dropped, except those of metric handles. A dropped series is
+ * flushed once more on the next flush, for calls that looked it up just before it was dropped.
+ */
+final class Aggregator {
+
+    interface Sink {
+        void send(String aspect, long value, MetricType type, String[] tags);
+
+        void send(String aspect, double value, MetricType type, String[] tags);
+    }
+
+    static final int                       DEFAULT_MAX_SERIES           = 100000;
+
+    /** Distinct values a set series remembers per flush interval. */
+    static final int                       MAX_SET_VALUES               = 8192;
+
+    /** Flushes without a change after which a series is dropped. */
+    static final int                       IDLE_FLUSHES_BEFORE_EVICTION = 3;
+
+    private static final ThreadLocal<Key> PROBES = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    private final ConcurrentMap<Key, Cell> cells   = new ConcurrentHashMap<Key, Cell>();
+    /** Series dropped by the previous flush; only touched by flushes. */
+    private final List<Map.Entry<Key, Cell>> evicted = new ArrayList<Map.Entry<Key, Cell>>();
+    private final boolean                  countersAndGauges;
+    private final boolean                  distributions;
+    private final boolean                  uniqueSets;
+    private final int                      maxSeries;
+    private final QuantileSketch.Snapshot  snapshot;
+
+    Aggregator(boolean countersAndGauges, boolean distributions) {
+        this(countersAndGauges, distributions, false);
+    }
+
+    Aggregator(boolean countersAndGauges, boolean distributions, boolean uniqueSets) {
+        this(countersAndGauges, distributions, uniqueSets, DEFAULT_MAX_SERIES);
+    }
+
+    Aggregator(boolean countersAndGauges, boolean distributions, boolean uniqueSets, int maxSeries) {
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        this.countersAndGauges = countersAndGauges;
+        this.distributions = distributions;
+        this.uniqueSets = uniqueSets;
+        this.maxSeries = maxSeries;
+        this.snapshot = distributions ? new QuantileSketch.Snapshot() : null;
+    }
+
+    /**
+     * @return false if {@code type} is not aggregated or the series limit is reached, so the value must be sent as
+     * is, or if it is a set value not seen since the last flush, which is sent right away
+     */
+    boolean record(MetricType type, String aspect, long value, String[] tags) {
+        if (!aggregates(type)) {
+            return false;
+        }
+        switch (type) {
+            case SET:
+                SetCell set = setCell(aspect, tags, false);
+                return set != null && !set.add(value);
+            case COUNTER:
+                CounterCell counter = counterCell(aspect, tags, false);
+                if (counter == null) {
+                    return false;
+                }
+                counter.add(value);
+                return true;
+            case GAUGE:
+                GaugeCell gauge = gaugeCell(aspect, tags, false);
+                if (gauge == null) {
+                    return false;
+                }
+                gauge.set(value);
+                return true;
+            default:
+                return record(type, aspect, (double) value, tags);
+        }
+    }
+
+    boolean record(MetricType type, String aspect, double value, String[] tags) {
+        if (!aggregates(type) || type == MetricType.COUNTER || type == MetricType.SET) {
+            return false;
+        }
+        if (type == MetricType.GAUGE) {
+            GaugeCell gauge = gaugeCell(aspect, tags, false);
+            if (gauge == null) {
+                return false;
+            }
+            gauge.set(value);
+            return true;
+        }
+        SketchCell sketch = sketchCell(type, aspect, tags, false);
+        if (sketch == null) {
+            return false;
+        }
+        sketch.record(value);
+        return true;
+    }
+
+    /**
+     * @return false if the value must be sent, see {@link #record(MetricType, String, long, String[])}
+     */
+    boolean recordSetValue(String aspect, String value, String[] tags) {
+        if (!aggregates(MetricType.SET)) {
+            return false;
+        }
+        SetCell set = setCell(aspect, tags, false);
+        return set != null && !set.add(value);
+    }
+
+    boolean aggregates(MetricType type) {
+        switch (type) {
+            case COUNTER:
+            case GAUGE:
+                return countersAndGauges;
+            case TIMER:
+            case HISTOGRAM:
+                return distributions;
+            case SET:
+                return uniqueSets;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return an aggregator with the same settings and no series
+     */
+    Aggregator newEmpty() {
+        return new Aggregator(countersAndGauges, distributions, uniqueSets, maxSeries);
+    }
+
+    int size() {
+        return cells.size();
+    }
+
+    /**
+     * Not thread-safe against itself: flushes run on one thread at a time, holding the aggregator's lock.
+     */
+    void flush(Sink sink) {
+        for (Map.Entry<Key, Cell> entry : evicted) {
+            entry.getValue().flush(entry.getKey(), sink, snapshot);
+        }
+        evicted.clear();
+        for (Map.Entry<Key, Cell> entry : cells.entrySet()) {
+            Cell cell = entry.getValue();
+            if (cell.flush(entry.getKey(), sink, snapshot)) {
+                cell.idleFlushes = 0;
+            } else if (!cell.pinned && ++cell.idleFlushes >= IDLE_FLUSHES_BEFORE_EVICTION
+                    && cells.remove(entry.getKey(), cell)) {
+                evicted.add(entry);
+            }
+        }
+    }
+
+    /**
+     * The counter of a series, registering it if needed.
+     *
+     * @param pin true to keep the series however long it stays unchanged, so that the caller may keep the cell
+     * @return null if the series limit is reached
+     */
+    CounterCell counterCell(String aspect, String[] tags, boolean pin) {
+        return (CounterCell) cell(MetricType.COUNTER, aspect, tags, pin);
+    }
+
+    GaugeCell gaugeCell(String aspect, String[] tags, boolean pin) {
+        return (GaugeCell) cell(MetricType.GAUGE, aspect, tags, pin);
+    }
+
+    SketchCell sketchCell(MetricType type, String aspect, String[] tags, boolean pin) {
+        return (SketchCell) cell(type, aspect, tags, pin);
+    }
+
+    SetCell setCell(String aspect, String[] tags, boolean pin) {
+        return (SetCell) cell(MetricType.SET, aspect, tags, pin);
+    }
+
+    /**
+     * The cell of a series, of the class {@link #newCell(MetricType, String)} creates for {@code type}.
+     */
+    private Cell cell(MetricType type, String aspect, String[] tags, boolean pin) {
+        if (pin) {
+            // a flush holds the same lock, so it cannot drop the series between the lookup and the pin
+            synchronized (this) {
+                Cell cell = cell(type, aspect, tags, false);
+                if (cell != null) {
+                    cell.pinned = true;
+                }
+                return cell;
+            }
+        }
+        Key probe = PROBES.get().reset(type, aspect, tags);
+        Cell cell = cells.get(probe);
+        if (cell == null) {
+            if (cells.size() >= maxSeries) {
+                return null;
+            }
+            Cell created = newCell(type, aspect);
+            cell = cells.putIfAbsent(probe.copy(), created);
+            if (cell == null) {
+                cell = created;
+            }
+        }
+        return cell;
+    }
+
+    private static Cell newCell(MetricType type, String aspect) {
+        switch (type) {
+            case COUNTER:
+                return new CounterCell();
+            case GAUGE:
+                return new GaugeCell();
+            case SET:
+                return new SetCell();
+            default:
+                return new SketchCell(aspect);
+        }
+    }
+
+    /**
+     * Identifies a series. Tags compare as sets; the copy stored in the map holds them sorted and without
+     * duplicates, which is the order flushed lines carry them in.
+     */
+    static final class Key {
+        private static final String[]           NO_TAGS    = new String[0];
+        private static final Comparator<String> TAG_ORDER  = Comparator.nullsFirst(Comparator.<String>naturalOrder());
+
+        MetricType type;
+        String     aspect;
+        String[]   tags;
+        int        hash;
+
+        Key reset(MetricType type, String aspect, String[] tags) {
+            this.type = type;
+            this.aspect = aspect;
+            this.tags = tags == null ? NO_TAGS : tags;
+            this.hash = (type.hashCode() * 31 + (aspect == null ? 0 : aspect.hashCode())) * 31 + tagSetHash(this.tags);
+            return this;
+        }
+
+        Key copy() {
+            return new Key().reset(type, aspect, canonical(tags));
+        }
+
+        private static String[] canonical(String[] tags) {
+            if (tags.length == 0) {
+                return NO_TAGS;
+            }
+            String[] sorted = tags.clone();
+            Arrays.sort(sorted, TAG_ORDER);
+            int distinct = 1;
+            for (int i = 1; i < sorted.length; i++) {
+                if (!equal(sorted[i], sorted[distinct - 1])) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            return distinct == sorted.length ? sorted : Arrays.copyOf(sorted, distinct);
+        }
+
+        /**
+         * Sums the hashes of the distinct tags, so that order and repeats do not matter.
+         */
+        static int tagSetHash(String[] tags) {
+            int hash = 0;
+            for (int i = 0; i < tags.length; i++) {
+                if (!contains(tags, i, tags[i])) {
+                    hash += tags[i] == null ? 0 : tags[i].hashCode();
+                }
+            }
+            return hash;
+        }
+
+        /**
+         * Compares as sets; quadratic, which beats sorting for the handful of tags a line carries.
+         */
+        static boolean sameTagSet(String[] tags, String[] other) {
+            for (String tag : tags) {
+                if (!contains(other, other.length, tag)) {
+                    return false;
+                }
+            }
+            for (String tag : other) {
+                if (!contains(tags, tags.length, tag)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        static boolean contains(String[] tags, int length, String tag) {
+            for (int i = 0; i < length; i++) {
+                if (equal(tags[i], tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && type == other.type
+                    && (aspect == null ? other.aspect == null : aspect.equals(other.aspect))
+                    && sameTagSet(tags, other.tags);
+        }
+    }
+
+    abstract static class Cell {
+        /** Consecutive flushes without a change; only touched by flushes. */
+        int              idleFlushes;
+        volatile boolean pinned;
+
+        /**
+         * @return false if the series did not change since the last flush
+         */
+        abstract boolean flush(Key key, Sink sink, QuantileSketch.Snapshot snapshot);
+    }
+
+    static final class CounterCell extends Cell {
+        private final LongAdder     sum   = new LongAdder();
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        void add(long delta) {
+            sum.add(delta);
+            if (!dirty.get()) {
+                dirty.set(true);
+            }
+        }
+
+        @Override
+        boolean flush(Key key, Sink sink, QuantileSketch.Snapshot snapshot) {
+            if (!dirty.get()) {
+                return false;
+            }
+            // sumThenReset loses adds that race it on Java 8; subtracting what was read keeps them for the next flush
+            long value = sum.sum();
+            sum.add(-value);
+            dirty.set(false);
+            if (sum.sum() != 0) {
+                // an add landed after the read, and its dirty flag may have been cleared above
+                dirty.set(true);
+            }
+            sink.send(key.aspect, value, key.type, key.tags);
+            return true;
+        }
+    }
+
+    /**
+     * Last value wins. The value and its kind are written separately, which is only visible if one series is fed
+     * longs and doubles concurrently.
+     */
+    static final class GaugeCell extends Cell {
+        private volatile long       bits;
+        private volatile boolean    floating;
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        void set(long value) {
+            floating = false;
+            bits = value;
+            dirty.set(true);
+        }
+
+        void set(double value) {
+            floating = true;
+            bits = Double.doubleToRawLongBits(value);
+            dirty.set(true);
+        }
+
+        @Override
+        boolean flush(Key key, Sink sink, QuantileSketch.Snapshot snapshot) {
+            if (!dirty.getAndSet(false)) {
+                return false;
+            }
+            if (floating) {
+                sink.send(key.aspect, Double.longBitsToDouble(bits), key.type, key.tags);
+            } else {
+                sink.send(key.aspect, bits, key.type, key.tags);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The set values sent since the last flush, as 64-bit hashes in an open-addressing table that grows up to
+     * {@value #MAX_SET_VALUES} values, so recording a value allocates nothing. Values beyond that are not remembered
+     * and go out every time; the agent still counts them once. A rare hash collision drops a distinct value until
+     * the next flush. A flush forgets the values and sends nothing, they already went out as they were first seen.
+     */
+    static final class SetCell extends Cell {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private long[]           hashes           = new long[INITIAL_CAPACITY];
+        private int              size;
+
+        /**
+         * @return false if the value was already recorded since the last flush
+         */
+        boolean add(long value) {
+            return addHash(mix(value));
+        }
+
+        boolean add(String value) {
+            // FNV-1a over the chars, so that the hash is 64 bits wide without encoding the value
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * 0x100000001b3L;
+            }
+            return addHash(mix(hash));
+        }
+
+        private synchronized boolean addHash(long hash) {
+            // 0 marks a free slot
+            if (hash == 0) {
+                hash = 1;
+            }
+            int mask = hashes.length - 1;
+            for (int i = (int) (hash ^ (hash >>> 32)) & mask;; i = (i + 1) & mask) {
+                if (hashes[i] == hash) {
+                    return false;
+                }
+                if (hashes[i] == 0) {
+                    break;
+                }
+            }
+            if (size == MAX_SET_VALUES) {
+                return true;
+            }
+            if (2 * (size + 1) > hashes.length) {
+                long[] grown = new long[hashes.length * 2];
+                for (long old : hashes) {
+                    if (old != 0) {
+                        insert(grown, old);
+                    }
+                }
+                hashes = grown;
+            }
+            insert(hashes, hash);
+            size++;
+            return true;
+        }
+
+        private static void insert(long[] table, long hash) {
+            int mask = table.length - 1;
+            int i = (int) (hash ^ (hash >>> 32)) & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = hash;
+        }
+
+        /**
+         * The finalizer of MurmurHash3.
+         */
+        private static long mix(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            return hash ^ (hash >>> 33);
+        }
+
+        @Override
+        synchronized boolean flush(Key key, Sink sink, QuantileSketch.Snapshot snapshot) {
+            if (size == 0) {
+                return false;
+            }
+            // a burst of values does not keep its large table for the quieter intervals after it
+            if (hashes.length > INITIAL_CAPACITY) {
+                hashes = new long[INITIAL_CAPACITY];
+            } else {
+                Arrays.fill(hashes, 0);
+            }
+            size = 0;
+            return true;
+        }
+    }
+
+    /**
+     * Summarises timer or histogram samples; the derived aspect names are built once per series.
+     */
+    static final class SketchCell extends Cell {
+        private final QuantileSketch sketch = new QuantileSketch();
+        private final String         count;
+        private final String         min;
+        private final String         max;
+        private final String         avg;
+        private final String         p50;
+        private final String         p95;
+        private final String         p99;
+
+        SketchCell(String aspect) {
+            this.count = aspect + ".count";
+            this.min = aspect + ".min";
+            this.max = aspect + ".max";
+            this.avg = aspect + ".avg";
+            this.p50 = aspect + ".p50";
+            this.p95 = aspect + ".p95";
+            this.p99 = aspect + ".p99";
+        }
+
+        void record(double value) {
+            sketch.record(value);
+        }
+
+        @Override
+        boolean flush(Key key, Sink sink, QuantileSketch.Snapshot snapshot) {
+            if (sketch.count() == 0) {
+                return false;
+            }
+            sketch.drainTo(snapshot);
+            if (snapshot.count == 0) {
+                return false;
+            }
+            sink.send(count, snapshot.count, MetricType.COUNTER, key.tags);
+            sink.send(min, snapshot.min, MetricType.GAUGE, key.tags);
+            sink.send(max, snapshot.max, MetricType.GAUGE, key.tags);
+            sink.send(avg, snapshot.average(), MetricType.GAUGE, key.tags);
+            sink.send(p50, snapshot.quantile(0.50), MetricType.GAUGE, key.tags);
+            sink.send(p95, snapshot.quantile(0.95), MetricType.GAUGE, key.tags);
+            sink.send(p99, snapshot.quantile(0.99), MetricType.GAUGE, key.tags);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package cloudinsight.sdk;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Caps the number of distinct tag sets each metric name may send.
+ * <p>
+ * Every metric keeps the 64-bit hashes of the tag sets it was admitted with in a fixed open-addressing table twice
+ * the size of the limit, so checking a known tag set is a few array reads and allocates nothing, and a metric costs
+ * at most {@code 16 * limit} bytes. Once a metric is full, new tag sets are dropped or collapsed into
+ * {@link #OVERFLOW_TAGS} and the metric is reported once to the error handler. Tag sets are told apart by an
+ * order-independent hash, so {@code ["a:1","b:2"]} and {@code ["b:2","a:1"]} count once, as they are one series on
+ * the agent, and a rare collision lets an extra one through. At most {@link #DEFAULT_MAX_METRICS} metric names are
+ * tracked; the tag sets of further names are treated as over the limit, so a flood of names cannot grow the tables
+ * without bound either.
+ */
+final class CardinalityLimiter {
+
+    static final String[]                      OVERFLOW_TAGS = {"cardinality:overflow"};
+
+    static final int                           DEFAULT_MAX_METRICS = 10000;
+
+    private static final String[]              NO_TAGS       = new String[0];
+
+    private final ConcurrentMap<String, TagSets> metrics     = new ConcurrentHashMap<String, TagSets>();
+    private final Set<String>                  limited       = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicBoolean                untrackedReported = new AtomicBoolean();
+    private final int                          limit;
+    private final int                          maxMetrics;
+    private final CardinalityPolicy            policy;
+    private final StatsDClientErrorHandler     handler;
+
+    CardinalityLimiter(int limit, CardinalityPolicy policy, StatsDClientErrorHandler handler) {
+        this(limit, DEFAULT_MAX_METRICS, policy, handler);
+    }
+
+    /**
+     * @param maxMetrics the number of metric names tracked
+     */
+    CardinalityLimiter(int limit, int maxMetrics, CardinalityPolicy policy, StatsDClientErrorHandler handler) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive: " + limit);
+        }
+        if (maxMetrics <= 0) {
+            throw new IllegalArgumentException("maxMetrics must be positive: " + maxMetrics);
+        }
+        this.limit = limit;
+        this.maxMetrics = maxMetrics;
+        this.policy = policy;
+        this.handler = handler;
+    }
+
+    /**
+     * @return a limiter with the same settings and no metrics
+     */
+    CardinalityLimiter newEmpty() {
+        return new CardinalityLimiter(limit, maxMetrics, policy, handler);
+    }
+
+    /**
+     * @return {@code tags}, or an empty array for null, if the tag set is known or still fits, {@link #OVERFLOW_TAGS} if it is collapsed, or
+     * null if the line must be dropped
+     */
+    String[] admit(String aspect, String[] tags) {
+        TagSets tagSets = metrics.get(aspect);
+        if (tagSets == null) {
+            if (metrics.size() >= maxMetrics) {
+                if (untrackedReported.compareAndSet(false, true)) {
+                    handler.handle(new StatsDClientException(String.format(
+                            "Cardinality limiter tracks %d metrics already, %s the tag sets of new ones", maxMetrics,
+                            policy == CardinalityPolicy.DROP ? "dropping" : "collapsing")));
+                }
+                return policy == CardinalityPolicy.DROP ? null : OVERFLOW_TAGS;
+            }
+            TagSets created = new TagSets(limit);
+            tagSets = metrics.putIfAbsent(aspect, created);
+            if (tagSets == null) {
+                tagSets = created;
+            }
+        }
+        if (tags == null) {
+            tags = NO_TAGS;
+        }
+        if (tagSets.add(hash(tags))) {
+            return tags;
+        }
+        if (limited.add(aspect)) {
+            handler.handle(new StatsDClientException(String.format(
+                    "Metric %s reached %d tag sets, %s new ones", aspect, limit, policy == CardinalityPolicy.DROP ? "dropping" : "collapsing")));
+        }
+        return policy == CardinalityPolicy.DROP ? null : OVERFLOW_TAGS;
+    }
+
+    /**
+     * @return the metric names that reached the limit so far
+     */
+    Set<String> limitedMetrics() {
+        return Collections.unmodifiableSet(limited);
+    }
+
+    /**
+     * Sums a 64-bit mix of each distinct tag's hash, so that order and repeats do not matter, like the series keys
+     * of {@link Aggregator}.
+     */
+    static long hash(String[] tags) {
+        long hash = 0;
+        for (int i = 0; i < tags.length; i++) {
+            if (!Aggregator.Key.contains(tags, i, tags[i])) {
+                hash += mix(tags[i] == null ? 0 : tags[i].hashCode());
+            }
+        }
+        // 0 marks a free slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, spreading a 32-bit hash over 64 bits.
+     */
+    private static long mix(int tagHash) {
+        long hash = (tagHash + 0x9e3779b97f4a7c15L) * 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static final class TagSets {
+        private final AtomicLongArray hashes;
+        private final AtomicInteger   size = new AtomicInteger();
+        private final int             limit;
+
+        TagSets(int limit) {
+            int capacity = 2;
+            while (capacity < 2 * limit) {
+                capacity <<= 1;
+            }
+            this.hashes = new AtomicLongArray(capacity);
+            this.limit = limit;
+        }
+
+        /**
+         * @return true if the hash was already in the table or was added to it
+         */
+        boolean add(long hash) {
+            final int mask = hashes.length() - 1;
+            boolean reserved = false;
+            for (int i = (int) (hash ^ (hash >>> 32)) & mask;; i = (i + 1) & mask) {
+                long slot = hashes.get(i);
+                if (slot == hash) {
+                    if (reserved) {
+                        size.decrementAndGet();
+                    }
+                    return true;
+                }
+                if (slot != 0) {
+                    continue;
+                }
+                // the table is at least twice the limit, so a reserved hash always finds a free slot
+                if (!reserved) {
+                    if (!reserve()) {
+                        return false;
+                    }
+                    reserved = true;
+                }
+                if (hashes.compareAndSet(i, 0, hash)) {
+                    return true;
+                }
+                i = (i - 1) & mask;
+            }
+        }
+
+        private boolean reserve() {
+            int current;
+            while ((current = size.get()) < limit) {
+                if (size.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
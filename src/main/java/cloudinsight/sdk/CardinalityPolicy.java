@@ -0,0 +1,16 @@
+package cloudinsight.sdk;
+
+
+/**
+ * What {@link CloudInsightStatsDClient} does with a new tag set of a metric that already reached its cardinality
+ * limit, see {@link CloudInsightStatsDClient.Builder#cardinalityLimit(int, CardinalityPolicy)}.
+ */
+public enum CardinalityPolicy {
+
+    /** Discard the line. */
+    DROP,
+
+    /** Send the line with its tags replaced by the single overflow tag {@code cardinality:overflow}. */
+    COLLAPSE
+
+}
@@ -0,0 +1,283 @@
+package cloudinsight.sdk;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters a {@link CloudInsightStatsDClient} keeps about itself, from {@link CloudInsightStatsDClient#getTelemetry()}.
+ * <p>
+ * Every counter is a striped {@link LongAdder}, so callers and sender threads update them without contending.
+ * Encoding is timed on one call in {@value #ENCODE_TIMING_SAMPLE} to keep {@link System#nanoTime()} off most
+ * calls; sends are timed per packet, next to the system call they measure.
+ */
+public final class ClientTelemetry implements ClientTelemetryMXBean {
+
+    static final int            ENCODE_TIMING_SAMPLE = 64;
+
+    final LongAdder             linesEnqueued        = new LongAdder();
+    final LongAdder             linesDropped         = new LongAdder();
+    final LongAdder             linesSent            = new LongAdder();
+    final LongAdder             packetsSent          = new LongAdder();
+    final LongAdder             bytesSent            = new LongAdder();
+    final LongAdder             sendErrors           = new LongAdder();
+    final LongAdder             linesFlushedOnClose  = new LongAdder();
+    final LongAdder             linesAbandoned       = new LongAdder();
+    /**
+     * Lines queued and then thrown away: evicted by {@link OverflowPolicy#DROP_OLDEST}, too big for a packet, or sent
+     * after the client was closed.
+     */
+    final LongAdder             linesDiscarded       = new LongAdder();
+    /** Lines dropped or collapsed because their metric reached its cardinality limit. */
+    final LongAdder             linesCardinalityLimited = new LongAdder();
+    final LongAdder             packetsSpilled       = new LongAdder();
+    final LongAdder             packetsReplayed      = new LongAdder();
+    /** Packets lost because the spill segment was full. */
+    final LongAdder             packetsSpillDropped  = new LongAdder();
+    private final LongAdder     encodeNanos          = new LongAdder();
+    private final LongAdder     encodeSamples        = new LongAdder();
+    private final LongAdder     sendNanos            = new LongAdder();
+    private final LongAdder     sends                = new LongAdder();
+    private final LongAdder     resolveNanos         = new LongAdder();
+    private final LongAdder     resolutions          = new LongAdder();
+    private final LongAdder     resolutionFailures   = new LongAdder();
+    private final AtomicInteger queueHighWaterMark   = new AtomicInteger();
+    private final RingBuffer<?>[] queues;
+    private final long[]        reported             = new long[16];
+
+    ClientTelemetry(RingBuffer<?>[] queues) {
+        this.queues = queues;
+    }
+
+    /**
+     * @return the start time if this encode is sampled for timing, otherwise 0
+     */
+    long startEncode() {
+        if ((ThreadLocalRandom.current().nextInt() & (ENCODE_TIMING_SAMPLE - 1)) != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    void endEncode(long start) {
+        if (start != 0) {
+            encodeNanos.add(System.nanoTime() - start);
+            encodeSamples.increment();
+        }
+    }
+
+    void sent(int bytes, long nanos) {
+        bytesSent.add(bytes);
+        sendNanos.add(nanos);
+        sends.increment();
+    }
+
+    void resolved(long nanos, boolean succeeded) {
+        resolveNanos.add(nanos);
+        resolutions.increment();
+        if (!succeeded) {
+            resolutionFailures.increment();
+        }
+    }
+
+    void queueDepth(int depth) {
+        int mark;
+        while (depth > (mark = queueHighWaterMark.get()) && !queueHighWaterMark.compareAndSet(mark, depth)) {
+        }
+    }
+
+    /**
+     * Sends the counters as {@code cloudinsight.client.*} series: counts as deltas since the previous report,
+     * averages over the same interval. Only one thread reports.
+     */
+    void reportTo(Aggregator.Sink sink) {
+        long enqueued = delta(0, linesEnqueued.sum());
+        long dropped = delta(1, linesDropped.sum());
+        long lines = delta(2, linesSent.sum());
+        long packets = delta(3, packetsSent.sum());
+        long bytes = delta(4, bytesSent.sum());
+        long errors = delta(5, sendErrors.sum());
+        long encodeTime = delta(6, encodeNanos.sum());
+        long encodes = delta(7, encodeSamples.sum());
+        long sendTime = delta(8, sendNanos.sum());
+        long sendCount = delta(9, sends.sum());
+        long resolveTime = delta(10, resolveNanos.sum());
+        long resolveCount = delta(11, resolutions.sum());
+        long cardinalityLimited = delta(12, linesCardinalityLimited.sum());
+        long spilled = delta(13, packetsSpilled.sum());
+        long replayed = delta(14, packetsReplayed.sum());
+        long spillDropped = delta(15, packetsSpillDropped.sum());
+        sink.send("cloudinsight.client.lines_enqueued", enqueued, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.lines_dropped", dropped, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.lines_sent", lines, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.packets_sent", packets, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.bytes_sent", bytes, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.send_errors", errors, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.lines_cardinality_limited", cardinalityLimited, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.packets_spilled", spilled, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.packets_replayed", replayed, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.packets_spill_dropped", spillDropped, MetricType.COUNTER, null);
+        sink.send("cloudinsight.client.queue_depth", getQueueDepth(), MetricType.GAUGE, null);
+        sink.send("cloudinsight.client.queue_high_water_mark", getQueueHighWaterMark(), MetricType.GAUGE, null);
+        if (packets > 0) {
+            sink.send("cloudinsight.client.lines_per_packet", (double) lines / packets, MetricType.GAUGE, null);
+        }
+        if (encodes > 0) {
+            sink.send("cloudinsight.client.encode_ns", (double) encodeTime / encodes, MetricType.GAUGE, null);
+        }
+        if (sendCount > 0) {
+            sink.send("cloudinsight.client.send_ns", (double) sendTime / sendCount, MetricType.GAUGE, null);
+        }
+        if (resolveCount > 0) {
+            sink.send("cloudinsight.client.resolve_ns", (double) resolveTime / resolveCount, MetricType.GAUGE, null);
+        }
+    }
+
+    private long delta(int index, long total) {
+        long delta = total - reported[index];
+        reported[index] = total;
+        return delta;
+    }
+
+    public long getLinesEnqueued() {
+        return linesEnqueued.sum();
+    }
+
+    /**
+     * @return lines discarded because a queue was full
+     */
+    public long getLinesDropped() {
+        return linesDropped.sum();
+    }
+
+    public long getLinesSent() {
+        return linesSent.sum();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * @return failed and partial sends, whether or not an error handler is set
+     */
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    /**
+     * @return lines dropped, or sent with their tags collapsed, because their metric reached its cardinality limit
+     */
+    public long getLinesCardinalityLimited() {
+        return linesCardinalityLimited.sum();
+    }
+
+    /**
+     * @return packets written to the spill segment while the agent was unreachable
+     */
+    public long getPacketsSpilled() {
+        return packetsSpilled.sum();
+    }
+
+    /**
+     * @return spilled packets sent once the agent was back
+     */
+    public long getPacketsReplayed() {
+        return packetsReplayed.sum();
+    }
+
+    /**
+     * @return packets lost because the spill segment was full
+     */
+    public long getPacketsSpillDropped() {
+        return packetsSpillDropped.sum();
+    }
+
+    /**
+     * @return lines queued but neither sent nor discarded yet
+     */
+    long linesInFlight() {
+        return linesEnqueued.sum() - linesSent.sum() - linesDiscarded.sum();
+    }
+
+    /**
+     * @return lines the sender threads sent while the client was closing
+     */
+    public long getLinesFlushedOnClose() {
+        return linesFlushedOnClose.sum();
+    }
+
+    /**
+     * @return lines still queued when the close timeout expired
+     */
+    public long getLinesAbandoned() {
+        return linesAbandoned.sum();
+    }
+
+    /**
+     * @return lines waiting in all queues right now
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (RingBuffer<?> queue : queues) {
+            if (queue != null) {
+                depth += queue.size();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the deepest any single queue has been when a sender thread looked at it
+     */
+    public int getQueueHighWaterMark() {
+        return queueHighWaterMark.get();
+    }
+
+    /**
+     * @return lines sent per packet, or 0 before the first packet
+     */
+    public double getAverageLinesPerPacket() {
+        long packets = packetsSent.sum();
+        return packets == 0 ? 0 : (double) linesSent.sum() / packets;
+    }
+
+    /**
+     * @return average time to encode one line on the calling thread, over the sampled calls
+     */
+    public double getAverageEncodeNanos() {
+        long samples = encodeSamples.sum();
+        return samples == 0 ? 0 : (double) encodeNanos.sum() / samples;
+    }
+
+    /**
+     * @return average time the transport took to send one packet
+     */
+    public double getAverageSendNanos() {
+        long count = sends.sum();
+        return count == 0 ? 0 : (double) sendNanos.sum() / count;
+    }
+
+    /**
+     * @return lookups of the agent host name, the one at start included
+     */
+    public long getResolutions() {
+        return resolutions.sum();
+    }
+
+    public long getResolutionFailures() {
+        return resolutionFailures.sum();
+    }
+
+    /**
+     * @return average time one lookup of the agent host name took
+     */
+    public double getAverageResolveNanos() {
+        long count = resolutions.sum();
+        return count == 0 ? 0 : (double) resolveNanos.sum() / count;
+    }
+}
@@ -0,0 +1,49 @@
+package cloudinsight.sdk;
+
+
+/**
+ * JMX view of {@link ClientTelemetry}, registered when {@link CloudInsightStatsDClient.Builder#jmx(boolean)} is on.
+ */
+public interface ClientTelemetryMXBean {
+
+    long getLinesEnqueued();
+
+    long getLinesDropped();
+
+    long getLinesSent();
+
+    long getPacketsSent();
+
+    long getBytesSent();
+
+    long getSendErrors();
+
+    long getLinesCardinalityLimited();
+
+    long getPacketsSpilled();
+
+    long getPacketsReplayed();
+
+    long getPacketsSpillDropped();
+
+    long getLinesFlushedOnClose();
+
+    long getLinesAbandoned();
+
+    int getQueueDepth();
+
+    int getQueueHighWaterMark();
+
+    double getAverageLinesPerPacket();
+
+    double getAverageEncodeNanos();
+
+    double getAverageSendNanos();
+
+    long getResolutions();
+
+    long getResolutionFailures();
+
+    double getAverageResolveNanos();
+
+}
@@ -1,57 +1,88 @@
 package cloudinsight.sdk;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import javax.management.ObjectName;
+
+public class CloudInsightStatsDClient implements StatsDClient, Closeable {
+
+    public static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
 
-public class CloudInsightStatsDClient implements StatsDClient {
-    
-    private static final int PACKET_SIZE_BYTES = Integer.valueOf(1500);
-    
     private static final StatsDClientErrorHandler NO_OP_HANDLER = new StatsDClientErrorHandler() {
        public void handle(Exception e) { 
             
         }
     };
     
-    private static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = new ThreadLocal<NumberFormat>() {
+    private static final ThreadLocal<MessageEncoder> ENCODERS = new ThreadLocal<MessageEncoder>() {
         @Override
-        protected NumberFormat initialValue() {
-
-            NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
-            numberFormatter.setGroupingUsed(false);
-            numberFormatter.setMaximumFractionDigits(6);
-
-            if (numberFormatter instanceof DecimalFormat) { 
-                final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
-                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
-                symbols.setNaN("NaN");
-                decimalFormat.setDecimalFormatSymbols(symbols);
-            }
-
-            return numberFormatter;
+        protected MessageEncoder initialValue() {
+            return new MessageEncoder();
         }
     };
-    
+
     private final String                           prefix;
-    private final DatagramChannel                  clientChannel;
-    private final InetSocketAddress                address;
     private final StatsDClientErrorHandler         handler;
     private final String                           constantTagsRendered;
+    private final byte[]                           prefixBytes;
+    private final byte[]                           constantTagsBytes;
+    private final TagSetCache                      tagSets;
+    private final CardinalityLimiter               cardinalityLimiter;
+    private final QueueConsumer[]                  consumers;
+    private final ShardingStrategy                 shardingStrategy;
+    private final OverflowPolicy                   overflowPolicy;
+    private final long                             offerTimeoutNanos;
+    private final AtomicLong                       reportedDrops     = new AtomicLong();
+    private final long                             maxLatencyNanos;
+    private final ClientTelemetry                  telemetry;
+    private final boolean                          deferredEncoding;
+    private final AtomicBoolean                    closed            = new AtomicBoolean();
+    private volatile long                          closeDeadlineNanos;
+    private volatile boolean                       stopping;
+    private final ObjectName                       mbeanName;
+    private final AddressResolver                  resolver;
+    /** The client that owns the sender threads and transports; this client itself unless it is a facade. */
+    private final CloudInsightStatsDClient         engine;
+    private final List<CloudInsightStatsDClient>   facades           = new CopyOnWriteArrayList<CloudInsightStatsDClient>();
+    private final long                             flushIntervalMs;
+    /** The longest line that fits in a packet of every sender thread. */
+    private final int                              maxLineBytes;
+    /** Time a sender thread waits between bursts of replayed packets. */
+    private final long                             replayIntervalNanos;
 
-    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
         final ThreadFactory delegate = Executors.defaultThreadFactory();
         public Thread newThread(Runnable r) {
             Thread result = delegate.newThread(r);
@@ -59,16 +90,80 @@ public class CloudInsightStatsDClient implements StatsDClient {
             result.setDaemon(true);
             return result;
         }
-    });
-    
-    private final BlockingQueue<String>            queue             = new LinkedBlockingQueue<String>();
+    };
+
+    private final Aggregator                       aggregator;
+    private final double[]                         defaultSampleRates;
+    private final List<ScheduledFuture<?>>         scheduledTasks    = new ArrayList<ScheduledFuture<?>>();
+
+    private final Aggregator.Sink                  directSink = new Aggregator.Sink() {
+        public void send(String aspect, long value, MetricType type, String[] tags) {
+            CloudInsightStatsDClient.this.send(aspect, value, type, 1, tags);
+        }
+
+        public void send(String aspect, double value, MetricType type, String[] tags) {
+            CloudInsightStatsDClient.this.send(aspect, value, type, 1, tags);
+        }
+    };
+
+    /** Sends the client's own series without the prefix, so they are named the same for every client. */
+    private final Aggregator.Sink                  telemetrySink = new Aggregator.Sink() {
+        public void send(String aspect, long value, MetricType type, String[] tags) {
+            CloudInsightStatsDClient.this.send(
+                    finishMessage(startMessage(NO_PREFIX, aspect).writeLong(value), type, 1, tags).toByteArray(), aspect);
+        }
+
+        public void send(String aspect, double value, MetricType type, String[] tags) {
+            CloudInsightStatsDClient.this.send(
+                    finishMessage(startMessage(NO_PREFIX, aspect).writeDouble(value), type, 1, tags).toByteArray(), aspect);
+        }
+    };
 
     private static final String                    DEFAULT_PREFIX    = "";
 
+    private static final byte[]                    NO_PREFIX         = new byte[0];
+
+    private static final AtomicInteger             CLIENT_IDS        = new AtomicInteger();
+
+    private static final Supplier<MetricRecord>    NEW_RECORD        = new Supplier<MetricRecord>() {
+        public MetricRecord get() {
+            return new MetricRecord();
+        }
+    };
+
     private static final String                    DEFAULT_HOSTNAME  = "localhost";
 
     private static final int                       DEFAULT_PORT      = Integer.valueOf(8251);
 
+    private static final int                       DEFAULT_QUEUE_CAPACITY = 65536;
+
+    private static final long                      DEFAULT_OFFER_TIMEOUT_MS = 100;
+
+    private static final long                      DEFAULT_FLUSH_INTERVAL_MS = 10000;
+
+    private static final Duration                  DEFAULT_SHUTDOWN_TIMEOUT = Duration.ofSeconds(30);
+
+    private static final long                      DEFAULT_MAX_LATENCY_MS = 5;
+
+    private static final int                       DEFAULT_TAG_SET_CACHE_SIZE = 1024;
+
+    private static final int                       DEFAULT_SPILL_REPLAY_RATE = 1000;
+
+    /** How often a spilling sender thread asks its transport whether the agent is back. */
+    private static final long                      SPILL_PROBE_INTERVAL_MS = 250;
+
+    /** Packets a sender thread fills before it sends them in one burst. */
+    private static final int                       PACKETS_PER_BURST = 8;
+
+    /** Lines a sender thread takes off its queue per pass. */
+    private static final int                       DRAIN_BATCH_SIZE = 256;
+
+    /**
+     * Longest an idle sender thread parks when no line arrives to wake it, as the poll of the first releases did. A
+     * queued line normally unparks the thread at once; this bounds the delay should a wakeup ever be missed.
+     */
+    private static final long                      IDLE_PARK_MS = 1000;
+
     public CloudInsightStatsDClient() {
         this(DEFAULT_PREFIX, DEFAULT_HOSTNAME, DEFAULT_PORT);
     }
@@ -82,30 +177,243 @@ public class CloudInsightStatsDClient implements StatsDClient {
     }
     
     public CloudInsightStatsDClient(String prefix, String hostname, int port, String[] constantTags, StatsDClientErrorHandler errorHandler) throws StatsDClientException {
-        if (prefix != null && prefix.length() > 0) {
-            this.prefix = String.format("%s.", prefix);
-        } else {
-            this.prefix = "";
+        this(legacyBuilder(prefix, hostname, port, constantTags, errorHandler));
+    }
+
+    /**
+     * The constructors predate the builder and declare only {@link StatsDClientException}, so its validation
+     * failures are rethrown as one.
+     */
+    private static Builder legacyBuilder(String prefix, String hostname, int port, String[] constantTags,
+            StatsDClientErrorHandler errorHandler) throws StatsDClientException {
+        try {
+            Builder builder = builder().prefix(prefix).hostname(hostname).port(port).constantTags(constantTags).errorHandler(errorHandler);
+            builder.validate();
+            return builder;
+        } catch (IllegalArgumentException e) {
+            throw new StatsDClientException("Invalid StatsD client settings: " + e.getMessage(), e);
+        }
+    }
+
+    private CloudInsightStatsDClient(Builder builder) throws StatsDClientException {
+        final ThreadFactory senderThreads = builder.virtualThreads ? virtualThreadFactory() : THREAD_FACTORY;
+        this.engine = this;
+        this.prefix = normalizePrefix(builder.prefix);
+        this.handler = builder.errorHandler;
+        this.constantTagsRendered = renderConstantTags(builder.constantTags);
+        this.prefixBytes = this.prefix.getBytes(MESSAGE_CHARSET);
+        this.constantTagsBytes = constantTagsRendered == null ? null : constantTagsRendered.getBytes(MESSAGE_CHARSET);
+        this.tagSets = builder.canonicalTags ? new TagSetCache(builder.constantTags, builder.tagSetCacheSize) : null;
+        this.cardinalityLimiter = builder.cardinalityLimit > 0
+                ? new CardinalityLimiter(builder.cardinalityLimit, builder.cardinalityPolicy, handler) : null;
+
+        this.shardingStrategy = builder.shardingStrategy;
+        this.overflowPolicy = builder.overflowPolicy;
+        this.defaultSampleRates = builder.defaultSampleRates.clone();
+        this.offerTimeoutNanos = builder.offerTimeoutUnit.toNanos(builder.offerTimeout);
+        this.maxLatencyNanos = builder.maxLatencyUnit.toNanos(builder.maxLatency);
+        this.deferredEncoding = builder.deferredEncoding;
+        this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(PACKETS_PER_BURST) / builder.spillReplayRate;
+        this.aggregator = builder.aggregation || builder.histogramSummaries || builder.uniqueSets
+                ? new Aggregator(builder.aggregation, builder.histogramSummaries, builder.uniqueSets) : null;
+
+        this.consumers = new QueueConsumer[builder.senderThreads];
+        RingBuffer<?>[] queues = new RingBuffer<?>[consumers.length];
+        this.telemetry = new ClientTelemetry(queues);
+        AddressResolver resolver = null;
+        try {
+            Transport.Factory transportFactory = builder.transportFactory;
+            if (transportFactory == null && builder.unixSocketPath != null) {
+                transportFactory = UnixDatagramTransport.factory(builder.unixSocketPath,
+                        builder.maxPacketSize > 0 ? builder.maxPacketSize : UnixDatagramTransport.DEFAULT_MAX_PACKET_SIZE);
+            } else if (transportFactory == null) {
+                resolver = new AddressResolver(builder.hostname, builder.port, telemetry);
+                transportFactory = UdpTransport.factory(resolver,
+                        builder.maxPacketSize > 0 ? builder.maxPacketSize : UdpTransport.DEFAULT_MAX_PACKET_SIZE,
+                        builder.spillDirectory != null);
+            }
+            for (int i = 0; i < consumers.length; i++) {
+                Transport transport = transportFactory.open();
+                int packetSize = transport.maxPacketSize();
+                if (builder.maxPacketSize > 0) {
+                    packetSize = Math.min(packetSize, builder.maxPacketSize);
+                }
+                SpillBuffer spill = null;
+                if (builder.spillDirectory != null) {
+                    try {
+                        spill = new SpillBuffer(new File(builder.spillDirectory, "sender-" + i + ".spill"), builder.spillMaxBytes);
+                    } catch (IOException e) {
+                        transport.close();
+                        throw e;
+                    }
+                }
+                if (deferredEncoding) {
+                    consumers[i] = new QueueConsumer(null, new RingBuffer<MetricRecord>(builder.queueCapacity, NEW_RECORD), transport, packetSize, spill);
+                } else {
+                    consumers[i] = new QueueConsumer(new RingBuffer<byte[]>(builder.queueCapacity), null, transport, packetSize, spill);
+                }
+                queues[i] = consumers[i].ring();
+            }
+        } catch (Exception e) {
+            closeChannels();
+            throw new StatsDClientException("Failed to start StatsD client", e);
+        }
+        this.resolver = resolver;
+        int maxLineBytes = Integer.MAX_VALUE;
+        for (QueueConsumer consumer : consumers) {
+            maxLineBytes = Math.min(maxLineBytes, consumer.packets[0].capacity());
+        }
+        this.maxLineBytes = maxLineBytes;
+        try {
+            for (QueueConsumer consumer : consumers) {
+                if (builder.senderExecutor != null) {
+                    builder.senderExecutor.execute(consumer);
+                } else {
+                    senderThreads.newThread(consumer).start();
+                }
+            }
+        } catch (RuntimeException e) {
+            closed.set(true);
+            stopping = true;
+            for (QueueConsumer consumer : consumers) {
+                consumer.wakeUp();
+            }
+            closeChannels();
+            throw new StatsDClientException("Failed to start StatsD client", e);
         }
-        this.handler = errorHandler;
 
-        if (constantTags != null && constantTags.length == 0) {
-            constantTags = null;
+        this.flushIntervalMs = builder.flushIntervalUnit.toMillis(builder.flushInterval);
+        scheduleAggregateFlushes();
+        if (builder.telemetryInterval > 0) {
+            long telemetryIntervalMs = builder.telemetryIntervalUnit.toMillis(builder.telemetryInterval);
+            scheduledTasks.add(SharedScheduler.INSTANCE.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    reportTelemetry();
+                }
+            }, telemetryIntervalMs, telemetryIntervalMs, TimeUnit.MILLISECONDS));
+        }
+        if (resolver != null && builder.addressRefreshInterval > 0) {
+            long refreshIntervalMs = builder.addressRefreshIntervalUnit.toMillis(builder.addressRefreshInterval);
+            scheduledTasks.add(SharedScheduler.INSTANCE.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    refreshAddress();
+                }
+            }, refreshIntervalMs, refreshIntervalMs, TimeUnit.MILLISECONDS));
         }
+        this.mbeanName = builder.jmx ? registerMBean() : null;
+    }
 
-        if (constantTags != null) {
-            this.constantTagsRendered = tagString(constantTags, null);
-        } else {
-            this.constantTagsRendered = null;
+    /**
+     * A facade over {@code engine}'s sender threads, transports and telemetry with its own prefix and constant tags.
+     */
+    private CloudInsightStatsDClient(CloudInsightStatsDClient engine, String prefix, String[] constantTags) {
+        this.engine = engine;
+        this.prefix = normalizePrefix(prefix);
+        this.handler = engine.handler;
+        this.constantTagsRendered = renderConstantTags(constantTags);
+        this.prefixBytes = this.prefix.getBytes(MESSAGE_CHARSET);
+        this.constantTagsBytes = constantTagsRendered == null ? null : constantTagsRendered.getBytes(MESSAGE_CHARSET);
+        this.tagSets = engine.tagSets == null ? null : new TagSetCache(constantTags, engine.tagSets.capacity());
+        this.cardinalityLimiter = engine.cardinalityLimiter == null ? null : engine.cardinalityLimiter.newEmpty();
+        this.consumers = engine.consumers;
+        this.shardingStrategy = engine.shardingStrategy;
+        this.overflowPolicy = engine.overflowPolicy;
+        this.offerTimeoutNanos = engine.offerTimeoutNanos;
+        this.maxLatencyNanos = engine.maxLatencyNanos;
+        this.telemetry = engine.telemetry;
+        this.deferredEncoding = engine.deferredEncoding;
+        this.defaultSampleRates = engine.defaultSampleRates;
+        this.aggregator = engine.aggregator == null ? null : engine.aggregator.newEmpty();
+        this.flushIntervalMs = engine.flushIntervalMs;
+        this.replayIntervalNanos = engine.replayIntervalNanos;
+        this.maxLineBytes = engine.maxLineBytes;
+        this.resolver = null;
+        this.mbeanName = null;
+        scheduleAggregateFlushes();
+    }
+
+    private static String normalizePrefix(String prefix) {
+        return prefix != null && prefix.length() > 0 ? String.format("%s.", prefix) : "";
+    }
+
+    private static String renderConstantTags(String[] constantTags) {
+        return constantTags != null && constantTags.length > 0 ? tagString(constantTags, null) : null;
+    }
+
+    private void scheduleAggregateFlushes() {
+        if (aggregator != null) {
+            scheduledTasks.add(SharedScheduler.INSTANCE.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    flushAggregates();
+                }
+            }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Creates a lightweight client that shares this client's sender threads, queues, transports and telemetry but
+     * sends under its own prefix and constant tags, so modules that each want their own naming do not each start
+     * threads and open sockets, and their lines are packed into the same packets.
+     * <p>
+     * The facade aggregates on its own if this client aggregates. Closing the facade only sends its aggregated
+     * series; closing this client closes its facades first and then stops the shared senders.
+     *
+     * @param prefix the facade's prefix, used instead of this client's
+     * @param constantTags the facade's constant tags, used instead of this client's
+     */
+    public CloudInsightStatsDClient facade(String prefix, String... constantTags) {
+        if (engine != this) {
+            return engine.facade(prefix, constantTags);
+        }
+        if (closed.get()) {
+            throw new IllegalStateException("client is closed");
         }
+        CloudInsightStatsDClient facade = new CloudInsightStatsDClient(this, prefix, constantTags);
+        facades.add(facade);
+        return facade;
+    }
 
+    /**
+     * {@code Thread.ofVirtual().factory()}, looked up reflectively so the library still runs on Java 8.
+     */
+    private static ThreadFactory virtualThreadFactory() throws StatsDClientException {
         try {
-            this.clientChannel = DatagramChannel.open();
-            this.address = new InetSocketAddress(hostname, port);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "Ci-StatsD-sender-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
         } catch (Exception e) {
-            throw new StatsDClientException("Failed to start StatsD client", e);
+            throw new StatsDClientException("Virtual threads need Java 21 or later", e);
+        }
+    }
+
+    /**
+     * One daemon thread runs the periodic tasks of every client in the JVM: aggregate flushes, telemetry reports
+     * and address refreshes. Each task is short; a client cancels its own on close.
+     */
+    private static final class SharedScheduler {
+        static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, THREAD_FACTORY);
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    private ObjectName registerMBean() {
+        try {
+            ObjectName name = new ObjectName("cloudinsight.sdk:type=CloudInsightStatsDClient,name=client-" + CLIENT_IDS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(telemetry, name);
+            return name;
+        } catch (Exception e) {
+            handler.handle(e);
+            return null;
         }
-        this.executor.submit(new QueueConsumer());
+    }
+
+    public static Builder builder() {
+        return new Builder();
     }
 
     static String tagString(final String[] tags, final String tagPrefix) {
@@ -133,144 +441,1793 @@ public class CloudInsightStatsDClient implements StatsDClient {
     }
 
     String tagString(final String[] tags) {
+        if (tagSets != null) {
+            return new String(tagSets.suffix(tags), MESSAGE_CHARSET);
+        }
         return tagString(tags, constantTagsRendered);
     }
 
     /**
-     * send message to agent.
-     * 
-     * @param message
+     * Appends the tag suffix the same way {@link #tagString(String[])} renders it: constant tags first and the
+     * given tags in reverse order, or with canonical tags the cached sorted suffix.
      */
-    private void send(String message) {
-        queue.offer(message);
-    }
-
-    public void stop() {
-        try {
-            executor.shutdown();
-            executor.awaitTermination(30, TimeUnit.SECONDS);
+    void writeTags(final MessageEncoder encoder, final String[] tags) {
+        if (tagSets != null) {
+            encoder.writeBytes(tagSets.suffix(tags));
+            return;
         }
-        catch (Exception e) {
-            handler.handle(e);
+        final boolean hasTags = tags != null && tags.length > 0;
+        if (constantTagsBytes != null) {
+            encoder.writeBytes(constantTagsBytes);
+            if (hasTags) {
+                encoder.writeByte(',');
+            }
+        } else if (hasTags) {
+            encoder.writeByte('|').writeByte('#');
         }
-        finally {
-            if (clientChannel != null) {
-                try {
-                    clientChannel.close();
-                }
-                catch (IOException e) {
-                    handler.handle(e);
+        if (hasTags) {
+            for (int n = tags.length - 1; n >= 0; n--) {
+                encoder.writeString(tags[n]);
+                if (n > 0) {
+                    encoder.writeByte(',');
                 }
             }
         }
     }
 
-    public void count(String aspect, long delta, String... tags) {
-        send(String.format("%s%s:%d|c%s", prefix, aspect, delta, tagString(tags)));
+    private MessageEncoder startMessage(String aspect) {
+        return startMessage(prefixBytes, aspect);
     }
 
-    public void incrementCounter(String aspect, String... tags) {
-        count(aspect, 1, tags);
+    private static MessageEncoder startMessage(byte[] prefix, String aspect) {
+        return ENCODERS.get().reset().writeBytes(prefix).writeString(aspect).writeByte(':');
     }
 
-    public void increment(String aspect, String... tags) {
-        incrementCounter(aspect, tags);
+    private MessageEncoder finishMessage(MessageEncoder encoder, MetricType type, double sampleRate, String[] tags) {
+        encoder.writeByte('|').writeBytes(type.bytes());
+        if (sampleRate < 1) {
+            encoder.writeByte('|').writeByte('@').writeDouble(sampleRate);
+        }
+        writeTags(encoder, tags);
+        return encoder;
     }
 
-    public void decrementCounter(String aspect, String... tags) {
-        count(aspect, -1, tags);
+    /**
+     * Encodes a line into the calling thread's encoder, which stays valid until the thread encodes the next one.
+     */
+    MessageEncoder encode(String aspect, long value, MetricType type, double sampleRate, String[] tags) {
+        return finishMessage(startMessage(aspect).writeLong(value), type, sampleRate, tags);
     }
-   
-    public void decrement(String aspect, String... tags) {
-        decrementCounter(aspect, tags);
+
+    MessageEncoder encode(String aspect, double value, MetricType type, double sampleRate, String[] tags) {
+        return finishMessage(startMessage(aspect).writeDouble(value), type, sampleRate, tags);
     }
-  
-    public void recordGaugeValue(String aspect, double value, String... tags) {
-        send(String.format("%s%s:%s|g%s", prefix, aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+
+    MessageEncoder encode(String aspect, long value, MetricType type, String[] tags) {
+        return encode(aspect, value, type, 1, tags);
     }
 
-    public void gauge(String aspect, double value, String... tags) {
-        recordGaugeValue(aspect, value, tags);
+    MessageEncoder encode(String aspect, double value, MetricType type, String[] tags) {
+        return encode(aspect, value, type, 1, tags);
     }
 
-    public void recordGaugeValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s:%d|g%s", prefix, aspect, value, tagString(tags)));
+    /**
+     * @return true if a call with this rate should be skipped, decided before any encoding work
+     */
+    private static boolean sampledOut(double sampleRate) {
+        return sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate;
     }
 
-    public void gauge(String aspect, long value, String... tags) {
-        recordGaugeValue(aspect, value, tags);
+    double defaultSampleRate(MetricType type) {
+        return defaultSampleRates[type.ordinal()];
     }
 
-    public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
-        send(String.format("%s%s:%d|ms%s", prefix, aspect, timeInMs, tagString(tags)));
+    /**
+     * @return the tags a line is sent with under the cardinality limit, or null if it must be dropped
+     */
+    private String[] limitCardinality(String aspect, String[] tags) {
+        String[] admitted = cardinalityLimiter.admit(aspect, tags);
+        if (admitted == null || admitted == CardinalityLimiter.OVERFLOW_TAGS) {
+            telemetry.linesCardinalityLimited.increment();
+        }
+        return admitted;
     }
 
-    public void time(String aspect, long value, String... tags) {
-        recordExecutionTime(aspect, value, tags);
+    private void record(String aspect, long value, MetricType type, double sampleRate, String[] tags) {
+        if (sampledOut(sampleRate)
+                || cardinalityLimiter != null && (tags = limitCardinality(aspect, tags)) == null) {
+            return;
+        }
+        // an aggregated line carries no rate, so only unsampled calls are aggregated
+        if (sampleRate >= 1 && aggregator != null && aggregator.record(type, aspect, value, tags)) {
+            return;
+        }
+        send(aspect, value, type, sampleRate, tags);
     }
 
-    public void recordHistogramValue(String aspect, double value, String... tags) {
-        send(String.format("%s%s:%s|h%s", prefix, aspect, NUMBER_FORMATTERS.get().format(value), tagString(tags)));
+    private void record(String aspect, double value, MetricType type, double sampleRate, String[] tags) {
+        if (sampledOut(sampleRate)
+                || cardinalityLimiter != null && (tags = limitCardinality(aspect, tags)) == null) {
+            return;
+        }
+        if (sampleRate >= 1 && aggregator != null && aggregator.record(type, aspect, value, tags)) {
+            return;
+        }
+        send(aspect, value, type, sampleRate, tags);
     }
 
-    public void histogram(String aspect, double value, String... tags) {
-        recordHistogramValue(aspect, value, tags);
+    /**
+     * Sends one line per aggregated series that changed since the last flush. Flushes from the scheduler, from
+     * {@link #flush()} and from {@link #close(Duration)} take turns.
+     */
+    void flushAggregates() {
+        if (aggregator == null) {
+            return;
+        }
+        synchronized (aggregator) {
+            try {
+                aggregator.flush(directSink);
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
     }
 
-    public void recordHistogramValue(String aspect, long value, String... tags) {
-        send(String.format("%s%s:%d|h%s", prefix, aspect, value, tagString(tags)));
+    /**
+     * Looks the agent host name up again; runs on the scheduler thread, never on the send path.
+     */
+    void refreshAddress() {
+        try {
+            resolver.refresh();
+        } catch (Exception e) {
+            handler.handle(e);
+        }
     }
 
-    public void histogram(String aspect, long value, String... tags) {
-        recordHistogramValue(aspect, value, tags);
+    /**
+     * Sends the client's telemetry series; runs on the scheduler thread.
+     */
+    void reportTelemetry() {
+        try {
+            telemetry.reportTo(telemetrySink);
+        } catch (Exception e) {
+            handler.handle(e);
+        }
     }
-    
-    public static final Charset MESSAGE_CHARSET = Charset.forName("UTF-8");
 
-    private class QueueConsumer implements Runnable {
-        private final ByteBuffer sendBuffer = ByteBuffer.allocate(PACKET_SIZE_BYTES);
+    private void send(String aspect, long value, MetricType type, double sampleRate, String[] tags) {
+        if (deferredEncoding) {
+            RingBuffer<MetricRecord> records = consumerFor(aspect).records;
+            long position = claimSlot(records);
+            if (position >= 0) {
+                records.slot(position).set(this, aspect, type, value, sampleRate, tags);
+                records.publish(position);
+            }
+            return;
+        }
+        long start = telemetry.startEncode();
+        byte[] message = encode(aspect, value, type, sampleRate, tags).toByteArray();
+        telemetry.endEncode(start);
+        send(message, aspect);
+    }
 
-         public void run() {
-            while(!executor.isShutdown()) {
-                try {
-                    String message = queue.poll(1, TimeUnit.SECONDS);
-                    if(null != message) {
-                        byte[] data = message.getBytes(MESSAGE_CHARSET);
-                        if(sendBuffer.remaining() < (data.length + 1)) {
-                            blockingSend();
-                        }
-                        if(sendBuffer.position() > 0) {
-                            sendBuffer.put( (byte) '\n');
-                        }
-                        sendBuffer.put(data);
-                        if(null == queue.peek()) {
-                            blockingSend();
-                        }
+    private void send(String aspect, double value, MetricType type, double sampleRate, String[] tags) {
+        if (deferredEncoding) {
+            RingBuffer<MetricRecord> records = consumerFor(aspect).records;
+            long position = claimSlot(records);
+            if (position >= 0) {
+                records.slot(position).set(this, aspect, type, value, sampleRate, tags);
+                records.publish(position);
+            }
+            return;
+        }
+        long start = telemetry.startEncode();
+        byte[] message = encode(aspect, value, type, sampleRate, tags).toByteArray();
+        telemetry.endEncode(start);
+        send(message, aspect);
+    }
+
+    /**
+     * Prefix, aspect and separator of a handle's lines, rendered once.
+     */
+    byte[] encodeHead(String aspect) {
+        return startMessage(aspect).toByteArray();
+    }
+
+    /**
+     * Type, sample rate and tag suffix of a handle's lines, constant tags included, rendered once.
+     */
+    byte[] encodeTail(MetricType type, double sampleRate, String[] tags) {
+        return finishMessage(ENCODERS.get().reset(), type, sampleRate, tags).toByteArray();
+    }
+
+    /**
+     * @return the aggregator handles of {@code type} record into directly, or null if they are sent line by line
+     */
+    Aggregator aggregatorFor(MetricType type) {
+        return aggregator != null && aggregator.aggregates(type) ? aggregator : null;
+    }
+
+    void send(byte[] head, long value, byte[] tail, String aspect) {
+        if (deferredEncoding) {
+            RingBuffer<MetricRecord> records = consumerFor(aspect).records;
+            long position = claimSlot(records);
+            if (position >= 0) {
+                records.slot(position).set(head, value, tail);
+                records.publish(position);
+            }
+            return;
+        }
+        long start = telemetry.startEncode();
+        byte[] message = ENCODERS.get().reset().writeBytes(head).writeLong(value).writeBytes(tail).toByteArray();
+        telemetry.endEncode(start);
+        send(message, aspect);
+    }
+
+    void send(byte[] head, double value, byte[] tail, String aspect) {
+        if (deferredEncoding) {
+            RingBuffer<MetricRecord> records = consumerFor(aspect).records;
+            long position = claimSlot(records);
+            if (position >= 0) {
+                records.slot(position).set(head, value, tail);
+                records.publish(position);
+            }
+            return;
+        }
+        long start = telemetry.startEncode();
+        byte[] message = ENCODERS.get().reset().writeBytes(head).writeDouble(value).writeBytes(tail).toByteArray();
+        telemetry.endEncode(start);
+        send(message, aspect);
+    }
+
+    /**
+     * Encodes a queued record on the sender thread, into that thread's encoder.
+     */
+    MessageEncoder encode(MetricRecord record) {
+        if (record.head != null) {
+            MessageEncoder encoder = ENCODERS.get().reset().writeBytes(record.head);
+            if (record.floating) {
+                encoder.writeDouble(record.doubleValue);
+            } else {
+                encoder.writeLong(record.longValue);
+            }
+            return encoder.writeBytes(record.tail);
+        }
+        if (record.floating) {
+            return record.client.encode(record.aspect, record.doubleValue, record.type, record.sampleRate, record.tags);
+        }
+        return record.client.encode(record.aspect, record.longValue, record.type, record.sampleRate, record.tags);
+    }
+
+    private QueueConsumer consumerFor(String aspect) {
+        if (consumers.length == 1) {
+            return consumers[0];
+        }
+        int hash;
+        if (shardingStrategy == ShardingStrategy.BY_METRIC) {
+            hash = aspect == null ? 0 : aspect.hashCode();
+            hash ^= hash >>> 16;
+        } else {
+            hash = (int) Thread.currentThread().getId();
+        }
+        return consumers[(hash & Integer.MAX_VALUE) % consumers.length];
+    }
+
+    /**
+     * Claims a record slot under the overflow policy, counting the line as queued or dropped.
+     *
+     * @return the position of the claimed slot, or -1 if the line was dropped
+     */
+    private long claimSlot(RingBuffer<MetricRecord> records) {
+        if (discardAfterClose()) {
+            return -1;
+        }
+        long position;
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while ((position = records.claim()) < 0) {
+                    long oldest = records.claimOldest();
+                    if (oldest >= 0) {
+                        records.slot(oldest).clear();
+                        records.release(oldest);
+                        telemetry.linesDropped.increment();
+                        telemetry.linesDiscarded.increment();
                     }
-                } catch (Exception e) {
-                    handler.handle(e);
                 }
+                break;
+            case BLOCK:
+                position = records.claim(offerTimeoutNanos, TimeUnit.NANOSECONDS);
+                break;
+            default:
+                position = records.claim();
+                break;
+        }
+        if (position >= 0) {
+            telemetry.linesEnqueued.increment();
+        } else {
+            telemetry.linesDropped.increment();
+        }
+        return position;
+    }
+
+    /**
+     * Once the sender threads are stopping nothing drains the queues any more, so a line sent after close is
+     * counted as discarded instead of being queued and lost without a trace.
+     *
+     * @return true if the line was discarded
+     */
+    private boolean discardAfterClose() {
+        if (!engine.stopping) {
+            return false;
+        }
+        telemetry.linesEnqueued.increment();
+        telemetry.linesDiscarded.increment();
+        return true;
+    }
+
+    /**
+     * send message to agent.
+     * 
+     * @param message the UTF-8 encoded line
+     * @param aspect the metric name, used to pick the sender shard
+     */
+    private void send(byte[] message, String aspect) {
+        if (deferredEncoding) {
+            RingBuffer<MetricRecord> records = consumerFor(aspect).records;
+            long position = claimSlot(records);
+            if (position >= 0) {
+                records.slot(position).line = message;
+                records.publish(position);
             }
+            return;
+        }
+        if (discardAfterClose()) {
+            return;
+        }
+        final RingBuffer<byte[]> queue = consumerFor(aspect).queue;
+        boolean queued;
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!(queued = queue.offer(message))) {
+                    if (queue.poll() != null) {
+                        telemetry.linesDropped.increment();
+                        telemetry.linesDiscarded.increment();
+                    }
+                }
+                break;
+            case BLOCK:
+                queued = queue.offer(message, offerTimeoutNanos, TimeUnit.NANOSECONDS);
+                break;
+            default:
+                queued = queue.offer(message);
+                break;
         }
+        if (queued) {
+            telemetry.linesEnqueued.increment();
+        } else {
+            telemetry.linesDropped.increment();
+        }
+    }
 
-        private void blockingSend() throws IOException {
-            int sizeOfBuffer = sendBuffer.position();
-            sendBuffer.flip();
-            int sentBytes = clientChannel.send(sendBuffer, address);
-            sendBuffer.limit(sendBuffer.capacity());
-            sendBuffer.rewind();
+    /**
+     * @return how many messages were discarded so far because the queue was full
+     */
+    public long getDroppedMessages() {
+        return telemetry.getLinesDropped();
+    }
 
-            if (sizeOfBuffer != sentBytes) {
-                handler.handle(
+    /**
+     * @return how many packets the sender threads have sent so far
+     */
+    public long getSentPackets() {
+        return telemetry.getPacketsSent();
+    }
+
+    /**
+     * @return how many lines the sender threads have sent so far
+     */
+    public long getSentLines() {
+        return telemetry.getLinesSent();
+    }
+
+    /**
+     * @return lines sent per packet since the client started, or 0 before the first packet
+     */
+    public double getAverageLinesPerPacket() {
+        return telemetry.getAverageLinesPerPacket();
+    }
+
+    /**
+     * @return the metric names that reached the cardinality limit so far, empty if there is no limit
+     */
+    public Set<String> getCardinalityLimitedMetrics() {
+        return cardinalityLimiter == null ? Collections.<String>emptySet() : cardinalityLimiter.limitedMetrics();
+    }
+
+    /**
+     * @return the client's own counters: lines queued, dropped and sent, packets, bytes, send errors, queue depth
+     * and encode and send times
+     */
+    public ClientTelemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /**
+     * Sends the aggregated series and every line queued so far, waiting up to 30 seconds.
+     */
+    public void flush() {
+        flush(DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * Sends the aggregated series and every line queued before the call, including partly filled packets, and
+     * waits until the sender threads are done or {@code timeout} expires.
+     *
+     * @return false if the timeout expired first
+     */
+    public boolean flush(Duration timeout) {
+        try {
+            flushAsync().get(timeout.toNanos(), TimeUnit.NANOSECONDS);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (Exception e) {
+            handler.handle(e);
+            return false;
+        }
+    }
+
+    /**
+     * Sends the aggregated series and asks every sender thread to send the lines queued so far, without waiting.
+     * <p>
+     * The future completes once every line queued before the call has been handed to the transport, so reactive
+     * code can wait for delivery without blocking a thread. It completes on a sender thread: attach slow work with
+     * the {@code ...Async} stage methods, not directly.
+     */
+    public CompletableFuture<Void> flushAsync() {
+        flushAggregates();
+        CompletableFuture<?>[] flushed = new CompletableFuture<?>[consumers.length];
+        for (int i = 0; i < consumers.length; i++) {
+            flushed[i] = consumers[i].requestFlush();
+        }
+        return CompletableFuture.allOf(flushed);
+    }
+
+    /**
+     * Same as {@link #close(Duration)} with a 30 second timeout.
+     */
+    public void stop() {
+        close(DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * Same as {@link #close(Duration)} with a 30 second timeout.
+     */
+    public void close() {
+        close(DEFAULT_SHUTDOWN_TIMEOUT);
+    }
+
+    /**
+     * Stops the client: sends the aggregated series one last time, then lets the sender threads drain their queues
+     * and partly filled packets until {@code timeout} expires, and closes the transports. The number of lines sent
+     * during the close and the number left behind are added to {@link ClientTelemetry}; if any were left behind,
+     * the error handler is told how many. Calls after the first one do nothing.
+     */
+    public void close(Duration timeout) {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (engine != this) {
+            closeFacade();
+            return;
+        }
+        for (CloudInsightStatsDClient facade : facades) {
+            facade.close(timeout);
+        }
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        final long sentBefore = telemetry.getLinesSent();
+        try {
+            for (ScheduledFuture<?> task : scheduledTasks) {
+                task.cancel(false);
+            }
+            // waits for a flush already running on the scheduler
+            flushAggregates();
+            closeDeadlineNanos = deadline;
+            stopping = true;
+            for (QueueConsumer consumer : consumers) {
+                consumer.wakeUp();
+            }
+            for (QueueConsumer consumer : consumers) {
+                consumer.finished.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            }
+        }
+        catch (Exception e) {
+            handler.handle(e);
+        }
+        finally {
+            long abandoned = telemetry.linesInFlight();
+            closeChannels();
+            unregisterMBean();
+            long flushed = telemetry.getLinesSent() - sentBefore;
+            telemetry.linesFlushedOnClose.add(flushed);
+            telemetry.linesAbandoned.add(abandoned);
+            if (abandoned > 0) {
+                handler.handle(new StatsDClientException(String.format(
+                        "Flushed %d lines on close, abandoned %d still queued after %d ms", flushed, abandoned, timeout.toMillis())));
+            }
+        }
+    }
+
+    private void closeFacade() {
+        for (ScheduledFuture<?> task : scheduledTasks) {
+            task.cancel(false);
+        }
+        flushAggregates();
+        engine.facades.remove(this);
+    }
+
+    private void unregisterMBean() {
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (QueueConsumer consumer : consumers) {
+            if (consumer != null) {
+                try {
+                    consumer.transport.close();
+                }
+                catch (IOException e) {
+                    handler.handle(e);
+                }
+                if (consumer.spill != null) {
+                    try {
+                        consumer.spill.close();
+                    }
+                    catch (IOException e) {
+                        handler.handle(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the error handler how many messages overflowed the queues since the last report; whichever sender
+     * thread gets here first reports a batch.
+     */
+    private void reportDrops() {
+        long dropped = telemetry.getLinesDropped();
+        long reported = reportedDrops.get();
+        if (dropped > reported && reportedDrops.compareAndSet(reported, dropped)) {
+            handler.handle(new StatsDClientException(
+                    String.format("Dropped %d messages, queue capacity %d is full", dropped - reported, consumers[0].ring().capacity())));
+        }
+    }
+
+    public void count(String aspect, long delta, String... tags) {
+        count(aspect, delta, defaultSampleRate(MetricType.COUNTER), tags);
+    }
+
+    public void count(String aspect, long delta, double sampleRate, String... tags) {
+        record(aspect, delta, MetricType.COUNTER, sampleRate, tags);
+    }
+
+    public void incrementCounter(String aspect, String... tags) {
+        count(aspect, 1, tags);
+    }
+
+    public void incrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, 1, sampleRate, tags);
+    }
+
+    public void increment(String aspect, String... tags) {
+        incrementCounter(aspect, tags);
+    }
+
+    public void increment(String aspect, double sampleRate, String... tags) {
+        incrementCounter(aspect, sampleRate, tags);
+    }
+
+    public void decrementCounter(String aspect, String... tags) {
+        count(aspect, -1, tags);
+    }
+
+    public void decrementCounter(String aspect, double sampleRate, String... tags) {
+        count(aspect, -1, sampleRate, tags);
+    }
+
+    public void decrement(String aspect, String... tags) {
+        decrementCounter(aspect, tags);
+    }
+
+    public void decrement(String aspect, double sampleRate, String... tags) {
+        decrementCounter(aspect, sampleRate, tags);
+    }
+
+    public void recordGaugeValue(String aspect, double value, String... tags) {
+        recordGaugeValue(aspect, value, defaultSampleRate(MetricType.GAUGE), tags);
+    }
+
+    public void recordGaugeValue(String aspect, double value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.GAUGE, sampleRate, tags);
+    }
+
+    public void gauge(String aspect, double value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    public void gauge(String aspect, double value, double sampleRate, String... tags) {
+        recordGaugeValue(aspect, value, sampleRate, tags);
+    }
+
+    public void recordGaugeValue(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, value, defaultSampleRate(MetricType.GAUGE), tags);
+    }
+
+    public void recordGaugeValue(String aspect, long value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.GAUGE, sampleRate, tags);
+    }
+
+    public void gauge(String aspect, long value, String... tags) {
+        recordGaugeValue(aspect, value, tags);
+    }
+
+    public void gauge(String aspect, long value, double sampleRate, String... tags) {
+        recordGaugeValue(aspect, value, sampleRate, tags);
+    }
+
+    public void recordExecutionTime(String aspect, long timeInMs, String... tags) {
+        recordExecutionTime(aspect, timeInMs, defaultSampleRate(MetricType.TIMER), tags);
+    }
+
+    public void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags) {
+        record(aspect, timeInMs, MetricType.TIMER, sampleRate, tags);
+    }
+
+    public void time(String aspect, long value, String... tags) {
+        recordExecutionTime(aspect, value, tags);
+    }
+
+    public void time(String aspect, long value, double sampleRate, String... tags) {
+        recordExecutionTime(aspect, value, sampleRate, tags);
+    }
+
+    /**
+     * Records a duration measured with {@link System#nanoTime()}, sent in milliseconds with up to six decimals so
+     * that sub-millisecond calls keep their resolution.
+     */
+    public void recordExecutionTimeNanos(String aspect, long nanos, String... tags) {
+        recordExecutionTimeNanos(aspect, nanos, defaultSampleRate(MetricType.TIMER), tags);
+    }
+
+    public void recordExecutionTimeNanos(String aspect, long nanos, double sampleRate, String... tags) {
+        record(aspect, nanos / 1000000d, MetricType.TIMER, sampleRate, tags);
+    }
+
+    public void recordHistogramValue(String aspect, double value, String... tags) {
+        recordHistogramValue(aspect, value, defaultSampleRate(MetricType.HISTOGRAM), tags);
+    }
+
+    public void recordHistogramValue(String aspect, double value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.HISTOGRAM, sampleRate, tags);
+    }
+
+    public void histogram(String aspect, double value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    public void histogram(String aspect, double value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    public void recordHistogramValue(String aspect, long value, String... tags) {
+        recordHistogramValue(aspect, value, defaultSampleRate(MetricType.HISTOGRAM), tags);
+    }
+
+    public void recordHistogramValue(String aspect, long value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.HISTOGRAM, sampleRate, tags);
+    }
+
+    public void histogram(String aspect, long value, String... tags) {
+        recordHistogramValue(aspect, value, tags);
+    }
+
+    public void histogram(String aspect, long value, double sampleRate, String... tags) {
+        recordHistogramValue(aspect, value, sampleRate, tags);
+    }
+
+    /**
+     * Sends a set value; the agent counts the distinct values of each interval. With
+     * {@link Builder#uniqueSets(boolean)} a value is sent once per flush interval.
+     */
+    public void set(String aspect, long value, String... tags) {
+        record(aspect, value, MetricType.SET, 1, tags);
+    }
+
+    public void set(String aspect, String value, String... tags) {
+        if (cardinalityLimiter != null && (tags = limitCardinality(aspect, tags)) == null) {
+            return;
+        }
+        if (aggregator != null && aggregator.recordSetValue(aspect, value, tags)) {
+            return;
+        }
+        long start = telemetry.startEncode();
+        byte[] message = finishMessage(startMessage(aspect).writeString(value), MetricType.SET, 1, tags).toByteArray();
+        telemetry.endEncode(start);
+        send(message, aspect);
+    }
+
+    public void distribution(String aspect, double value, String... tags) {
+        distribution(aspect, value, defaultSampleRate(MetricType.DISTRIBUTION), tags);
+    }
+
+    public void distribution(String aspect, double value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.DISTRIBUTION, sampleRate, tags);
+    }
+
+    public void distribution(String aspect, long value, String... tags) {
+        distribution(aspect, value, defaultSampleRate(MetricType.DISTRIBUTION), tags);
+    }
+
+    public void distribution(String aspect, long value, double sampleRate, String... tags) {
+        record(aspect, value, MetricType.DISTRIBUTION, sampleRate, tags);
+    }
+
+    /**
+     * Sends an event through the sender threads like any other line. If the event is longer than a packet, its
+     * text is cut short so that it fits; it is never split across packets.
+     */
+    public void recordEvent(Event event, String... tags) {
+        long start = telemetry.startEncode();
+        byte[] title = escapeNewlines(event.getTitle()).getBytes(MESSAGE_CHARSET);
+        byte[] text = escapeNewlines(event.getText()).getBytes(MESSAGE_CHARSET);
+        MessageEncoder encoder = encodeEvent(event, title, text, text.length, tags);
+        int excess = encoder.length() - maxLineBytes;
+        if (excess > 0) {
+            // the shorter text also has a shorter or equal length field, so the line fits unless the rest is too long
+            encoder = encodeEvent(event, title, text, utf8Prefix(text, text.length - excess), tags);
+        }
+        byte[] message = encoder.toByteArray();
+        telemetry.endEncode(start);
+        send(message, event.getTitle());
+    }
+
+    /**
+     * Sends a service check through the sender threads like any other line. If the check is longer than a
+     * packet, its message is cut short so that it fits; it is never split across packets.
+     */
+    public void recordServiceCheck(ServiceCheck serviceCheck, String... tags) {
+        long start = telemetry.startEncode();
+        byte[] text = serviceCheck.getMessage() == null ? null
+                : escapeNewlines(serviceCheck.getMessage()).replace("m:", "m\\:").getBytes(MESSAGE_CHARSET);
+        MessageEncoder encoder = encodeServiceCheck(serviceCheck, text, text == null ? 0 : text.length, tags);
+        int excess = encoder.length() - maxLineBytes;
+        if (excess > 0 && text != null) {
+            encoder = encodeServiceCheck(serviceCheck, text, utf8Prefix(text, text.length - excess), tags);
+        }
+        byte[] message = encoder.toByteArray();
+        telemetry.endEncode(start);
+        send(message, serviceCheck.getName());
+    }
+
+    private MessageEncoder encodeEvent(Event event, byte[] title, byte[] text, int textLength, String[] tags) {
+        MessageEncoder encoder = ENCODERS.get().reset()
+                .writeByte('_').writeByte('e').writeByte('{').writeLong(title.length).writeByte(',').writeLong(textLength)
+                .writeByte('}').writeByte(':').writeBytes(title).writeByte('|').writeBytes(text, textLength);
+        if (event.getTimestamp() > 0) {
+            encoder.writeByte('|').writeByte('d').writeByte(':').writeLong(event.getTimestamp());
+        }
+        writeField(encoder, 'h', event.getHostname());
+        writeField(encoder, 'k', event.getAggregationKey());
+        if (event.getPriority() != null) {
+            writeField(encoder, 'p', event.getPriority().name().toLowerCase(Locale.ROOT));
+        }
+        writeField(encoder, 's', event.getSourceTypeName());
+        if (event.getAlertType() != null) {
+            writeField(encoder, 't', event.getAlertType().name().toLowerCase(Locale.ROOT));
+        }
+        writeTags(encoder, tags);
+        return encoder;
+    }
+
+    private MessageEncoder encodeServiceCheck(ServiceCheck serviceCheck, byte[] message, int messageLength, String[] tags) {
+        MessageEncoder encoder = ENCODERS.get().reset()
+                .writeByte('_').writeByte('s').writeByte('c').writeByte('|').writeString(serviceCheck.getName())
+                .writeByte('|').writeLong(serviceCheck.getStatus().code());
+        if (serviceCheck.getTimestamp() > 0) {
+            encoder.writeByte('|').writeByte('d').writeByte(':').writeLong(serviceCheck.getTimestamp());
+        }
+        writeField(encoder, 'h', serviceCheck.getHostname());
+        writeTags(encoder, tags);
+        if (message != null) {
+            encoder.writeByte('|').writeByte('m').writeByte(':').writeBytes(message, messageLength);
+        }
+        return encoder;
+    }
+
+    private static void writeField(MessageEncoder encoder, char key, String value) {
+        if (value != null) {
+            encoder.writeByte('|').writeByte(key).writeByte(':').writeString(value);
+        }
+    }
+
+    private static String escapeNewlines(String value) {
+        return value.replace("\n", "\\n");
+    }
+
+    /**
+     * @return the largest length of at most {@code limit} that does not cut a UTF-8 sequence of {@code bytes}
+     */
+    private static int utf8Prefix(byte[] bytes, int limit) {
+        if (limit <= 0) {
+            return 0;
+        }
+        while (limit < bytes.length && (bytes[limit] & 0xC0) == 0x80) {
+            limit--;
+        }
+        return limit;
+    }
+
+    /**
+     * A counter handle for static tag sets: the line prefix and tag suffix are encoded once, and each call only
+     * formats the value. Handles are thread-safe and meant to be kept, e.g. in a static field.
+     */
+    public Counter counter(String aspect, String... tags) {
+        return new Counter(this, aspect, tags);
+    }
+
+    public Gauge gauge(String aspect, String... tags) {
+        return new Gauge(this, aspect, tags);
+    }
+
+    public Timer timer(String aspect, String... tags) {
+        return new Timer(this, aspect, tags);
+    }
+
+    public Histogram histogram(String aspect, String... tags) {
+        return new Histogram(this, aspect, tags);
+    }
+
+    /**
+     * Drains one queue shard into packets sent through the shard's own transport.
+     * <p>
+     * Lines are taken off the queue in batches and packed into a small pool of direct buffers, so the transport
+     * sends without copying. Packets go out in one burst when the pool is full, or once the oldest pending line has
+     * waited for the max latency; until then the consumer sleeps without being woken by every new line, so packets
+     * fill up under moderate load. With nothing pending it parks until a producer offers a line.
+     * <p>
+     * In deferred encoding mode the queue holds {@link MetricRecord} slots instead of encoded lines, and the
+     * consumer encodes each record straight into the packet.
+     */
+    private class QueueConsumer implements Runnable {
+        private final ByteBuffer[]             packets;
+        private final byte[][]                 batch;
+        private final RingBuffer<byte[]>       queue;
+        private final RingBuffer<MetricRecord> records;
+        private final Transport                transport;
+        /** Packets held while the agent is unreachable, or null if the client does not spill. */
+        private final SpillBuffer              spill;
+        private final ByteBuffer               replayPacket;
+        private final ConcurrentLinkedQueue<CompletableFuture<Void>> flushRequests =
+                new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+        private final CountDownLatch           finished   = new CountDownLatch(1);
+        private volatile Thread                thread;
+        private int                            current;
+        private int                            pendingLines;
+        /** The number of lines in each packet of the pool. */
+        private final int[]                    packetLines;
+        private long                           deadline;
+        private boolean                        spilling;
+        private long                           nextProbe;
+        private long                           nextReplay;
+
+        /**
+         * @param queue encoded lines, or null in deferred encoding mode
+         * @param records record slots in deferred encoding mode, otherwise null
+         * @param spill the sender's spill segment, or null
+         */
+        QueueConsumer(RingBuffer<byte[]> queue, RingBuffer<MetricRecord> records, Transport transport, int packetSize, SpillBuffer spill) {
+            this.queue = queue;
+            this.records = records;
+            this.batch = queue != null ? new byte[DRAIN_BATCH_SIZE][] : null;
+            this.transport = transport;
+            this.spill = spill;
+            this.replayPacket = spill != null ? ByteBuffer.allocateDirect(packetSize) : null;
+            this.packets = new ByteBuffer[PACKETS_PER_BURST];
+            this.packetLines = new int[PACKETS_PER_BURST];
+            for (int i = 0; i < packets.length; i++) {
+                packets[i] = ByteBuffer.allocateDirect(packetSize);
+            }
+        }
+
+         public void run() {
+            thread = Thread.currentThread();
+            try {
+                loop();
+            } finally {
+                thread = null;
+                // the loop has already sent what it could before the transport closes, so the pending requests are
+                // only completed here, never flushed again; after the count down, so one requested meanwhile is
+                // either completed here or by requestFlush
+                finished.countDown();
+                CompletableFuture<Void> request;
+                while ((request = flushRequests.poll()) != null) {
+                    request.complete(null);
+                }
+            }
+        }
+
+        private void loop() {
+            while(!stopping) {
+                try {
+                    reportDrops();
+                    if (!flushRequests.isEmpty()) {
+                        completeFlushRequests();
+                    }
+                    if (spill != null && (spilling || !spill.isEmpty())) {
+                        replay();
+                    }
+                    telemetry.queueDepth(ring().size());
+                    if (drain() == DRAIN_BATCH_SIZE) {
+                        continue;
+                    }
+                    if (pendingLines == 0) {
+                        if (ring().await(Math.min(spillWaitNanos(), TimeUnit.MILLISECONDS.toNanos(IDLE_PARK_MS)), TimeUnit.NANOSECONDS)) {
+                            telemetry.queueDepth(ring().size());
+                        }
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            flush();
+                        } else {
+                            LockSupport.parkNanos(this, Math.min(remaining, spillWaitNanos()));
+                        }
+                    }
+                } catch (Exception e) {
+                    handler.handle(e);
+                }
+            }
+            try {
+                while (System.nanoTime() - closeDeadlineNanos < 0 && drain() > 0) {
+                }
+                flush();
+            } catch (Exception e) {
+                handler.handle(e);
+            }
+        }
+
+        /**
+         * @return completed once every line queued before the call has been handed to the transport
+         */
+        CompletableFuture<Void> requestFlush() {
+            CompletableFuture<Void> flushed = new CompletableFuture<Void>();
+            flushRequests.add(flushed);
+            wakeUp();
+            if (finished.getCount() == 0) {
+                flushed.complete(null);
+            }
+            return flushed;
+        }
+
+        /**
+         * Ends an idle wait or a wait for the max latency deadline.
+         */
+        void wakeUp() {
+            ring().wakeUp();
+            Thread current = thread;
+            if (current != null) {
+                LockSupport.unpark(current);
+            }
+        }
+
+        /**
+         * Sends everything queued so far, at most one queue capacity so that busy producers cannot hold it up, and
+         * completes the flush requests made before.
+         */
+        private void completeFlushRequests() {
+            int requests = flushRequests.size();
+            int budget = ring().capacity();
+            int drained;
+            while (budget > 0 && (drained = drain()) > 0) {
+                budget -= drained;
+            }
+            flush();
+            for (int i = 0; i < requests; i++) {
+                CompletableFuture<Void> request = flushRequests.poll();
+                if (request == null) {
+                    break;
+                }
+                request.complete(null);
+            }
+        }
+
+        RingBuffer<?> ring() {
+            return queue != null ? queue : records;
+        }
+
+        /**
+         * Packs the next batch of queued lines.
+         *
+         * @return the number of lines taken off the queue
+         */
+        private int drain() {
+            if (queue != null) {
+                int drained = queue.drainTo(batch);
+                for (int i = 0; i < drained; i++) {
+                    ByteBuffer packet = packetFor(batch[i].length);
+                    if (packet != null) {
+                        packet.put(batch[i]);
+                    }
+                    batch[i] = null;
+                }
+                return drained;
+            }
+            int drained = 0;
+            while (drained < DRAIN_BATCH_SIZE) {
+                long position = records.claimOldest();
+                if (position < 0) {
+                    break;
+                }
+                MetricRecord record = records.slot(position);
+                try {
+                    if (record.line != null) {
+                        ByteBuffer packet = packetFor(record.line.length);
+                        if (packet != null) {
+                            packet.put(record.line);
+                        }
+                    } else {
+                        long start = telemetry.startEncode();
+                        MessageEncoder encoder = encode(record);
+                        telemetry.endEncode(start);
+                        ByteBuffer packet = packetFor(encoder.length());
+                        if (packet != null) {
+                            encoder.writeTo(packet);
+                        }
+                    }
+                } finally {
+                    record.clear();
+                    records.release(position);
+                }
+                drained++;
+            }
+            return drained;
+        }
+
+        /**
+         * Makes room for a line of {@code length} bytes, moving on to the next packet or sending the pool if needed,
+         * and writes the separator.
+         *
+         * @return the packet to write the line into, or null if the line can never fit one and was dropped
+         */
+        private ByteBuffer packetFor(int length) {
+            ByteBuffer packet = packets[current];
+            if (length > packet.capacity()) {
+                telemetry.linesDiscarded.increment();
+                handler.handle(new IOException(String.format(
+                        "Dropped a stat of %d bytes, more than the packet size of %d bytes", length, packet.capacity())));
+                return null;
+            }
+            if (packet.remaining() < length + 1 && packet.position() > 0) {
+                if (current + 1 == packets.length) {
+                    flush();
+                } else {
+                    current++;
+                }
+                packet = packets[current];
+            }
+            if (pendingLines == 0) {
+                deadline = System.nanoTime() + maxLatencyNanos;
+            }
+            if (packet.position() > 0) {
+                packet.put((byte) '\n');
+            }
+            pendingLines++;
+            packetLines[current]++;
+            return packet;
+        }
+
+        private void flush() {
+            int filled = packets[current].position() > 0 ? current + 1 : current;
+            try {
+                for (int i = 0; i < filled; i++) {
+                    packets[i].flip();
+                    boolean sent = false;
+                    try {
+                        sent = sendOrSpill(packets[i]);
+                    } catch (Exception e) {
+                        // unchecked too: a datagram channel throws UnresolvedAddressException for an unresolved host
+                        telemetry.sendErrors.increment();
+                        handler.handle(e);
+                    }
+                    if (sent) {
+                        telemetry.packetsSent.increment();
+                        telemetry.linesSent.add(packetLines[i]);
+                    } else {
+                        telemetry.linesDiscarded.add(packetLines[i]);
+                    }
+                    packetLines[i] = 0;
+                }
+            } finally {
+                for (int i = 0; i < filled; i++) {
+                    packets[i].clear();
+                    telemetry.linesDiscarded.add(packetLines[i]);
+                    packetLines[i] = 0;
+                }
+                current = 0;
+                pendingLines = 0;
+            }
+        }
+
+        /**
+         * Sends a packet, or appends it to the spill segment while the agent is unreachable. A send that fails
+         * while the client spills starts spilling instead of being reported as a send error.
+         *
+         * @return false if the packet was lost because the spill segment was full
+         */
+        private boolean sendOrSpill(ByteBuffer packet) throws IOException {
+            if (spill == null) {
+                blockingSend(packet);
+                return true;
+            }
+            if (!spilling) {
+                try {
+                    blockingSend(packet);
+                    return true;
+                } catch (IOException e) {
+                    startSpilling(e);
+                    packet.position(0);
+                }
+            }
+            if (spill.append(packet)) {
+                telemetry.packetsSpilled.increment();
+                return true;
+            }
+            telemetry.packetsSpillDropped.increment();
+            return false;
+        }
+
+        private void startSpilling(IOException cause) {
+            spilling = true;
+            nextProbe = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SPILL_PROBE_INTERVAL_MS);
+            handler.handle(new StatsDClientException(String.format(
+                    "Agent unreachable through %s, spilling packets to %s", transport, spill), cause));
+        }
+
+        /**
+         * While spilling, asks the transport every probe interval whether the agent is back; once it is, sends a
+         * burst of spilled packets per replay interval, so a backlog does not flood the agent as it starts.
+         */
+        private void replay() throws IOException {
+            long now = System.nanoTime();
+            if (spilling) {
+                if (now - nextProbe < 0) {
+                    return;
+                }
+                nextProbe = now + TimeUnit.MILLISECONDS.toNanos(SPILL_PROBE_INTERVAL_MS);
+                if (!transport.reachable()) {
+                    return;
+                }
+                spilling = false;
+            }
+            if (now - nextReplay < 0) {
+                return;
+            }
+            nextReplay = now + replayIntervalNanos;
+            for (int i = 0; i < PACKETS_PER_BURST && spill.peek(replayPacket); i++) {
+                // counted before the send, so whoever sees the packet arrive also sees it counted
+                telemetry.packetsReplayed.increment();
+                try {
+                    blockingSend(replayPacket);
+                } catch (IOException e) {
+                    telemetry.packetsReplayed.decrement();
+                    startSpilling(e);
+                    return;
+                }
+                spill.remove();
+            }
+        }
+
+        /**
+         * @return how long the sender thread may wait before it must probe or replay again
+         */
+        private long spillWaitNanos() {
+            if (spill == null || !spilling && spill.isEmpty()) {
+                return Long.MAX_VALUE;
+            }
+            return Math.max(1, (spilling ? nextProbe : nextReplay) - System.nanoTime());
+        }
+
+        /**
+         * Sends a flipped packet.
+         */
+        private void blockingSend(ByteBuffer sendBuffer) throws IOException {
+            int sizeOfBuffer = sendBuffer.remaining();
+            long start = System.nanoTime();
+            int sentBytes = transport.send(sendBuffer);
+            telemetry.sent(sentBytes, System.nanoTime() - start);
+
+            if (sizeOfBuffer != sentBytes) {
+                telemetry.sendErrors.increment();
+                handler.handle(
                         new IOException(
                             String.format(
-                                "Could not send entirely stat %s to host %s:%d. Only sent %d bytes out of %d bytes",
+                                "Could not send entirely stat %s to %s. Only sent %d bytes out of %d bytes",
                                 sendBuffer.toString(),
-                                address.getHostName(),
-                                address.getPort(),
+                                transport,
                                 sentBytes,
                                 sizeOfBuffer)));
             }
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Configures a {@link CloudInsightStatsDClient}; unset options keep the defaults of the plain constructors.
+     * Setters reject invalid values and {@link #build()} rejects invalid combinations with an
+     * {@link IllegalArgumentException}, before any thread or socket is created. A client copies the options when it
+     * is built, so a builder can be changed and built again without affecting earlier clients.
+     */
+    public static final class Builder {
+
+        /** Prefix of the system properties read by {@link #fromEnvironment()}. */
+        public static final String       PROPERTY_PREFIX    = "cloudinsight.statsd.";
+
+        /** Prefix of the environment variables read by {@link #fromEnvironment()}. */
+        public static final String       ENVIRONMENT_PREFIX = "CLOUDINSIGHT_STATSD_";
+
+        /** The options {@link #fromEnvironment()} reads, as property names without {@link #PROPERTY_PREFIX}. */
+        private static final String[]    SETTINGS           = {
+                "prefix", "host", "port", "tags", "unix.socket", "max.packet.size", "queue.capacity", "sender.threads",
+                "sharding.strategy", "overflow.policy", "offer.timeout.ms", "max.latency.ms", "flush.interval.ms",
+                "aggregation", "histogram.summaries", "unique.sets", "deferred.encoding", "canonical.tags",
+                "tag.set.cache.size", "cardinality.policy", "cardinality.limit", "spill.max.bytes", "spill.directory",
+                "spill.replay.rate", "address.refresh.interval.ms", "telemetry.interval.ms", "virtual.threads", "jmx" };
+
+        private String                   prefix           = DEFAULT_PREFIX;
+        private String                   hostname         = DEFAULT_HOSTNAME;
+        private int                      port             = DEFAULT_PORT;
+        private String[]                 constantTags;
+        private StatsDClientErrorHandler errorHandler     = NO_OP_HANDLER;
+        private int                      queueCapacity    = DEFAULT_QUEUE_CAPACITY;
+        private OverflowPolicy           overflowPolicy   = OverflowPolicy.DROP_NEWEST;
+        private int                      senderThreads    = 1;
+        private ShardingStrategy         shardingStrategy = ShardingStrategy.BY_THREAD;
+        private long                     offerTimeout     = DEFAULT_OFFER_TIMEOUT_MS;
+        private TimeUnit                 offerTimeoutUnit = TimeUnit.MILLISECONDS;
+        private boolean                  aggregation;
+        private boolean                  histogramSummaries;
+        private boolean                  uniqueSets;
+        private final double[]           defaultSampleRates = defaultSampleRates();
+        private long                     flushInterval    = DEFAULT_FLUSH_INTERVAL_MS;
+        private TimeUnit                 flushIntervalUnit = TimeUnit.MILLISECONDS;
+        private long                     maxLatency       = DEFAULT_MAX_LATENCY_MS;
+        private TimeUnit                 maxLatencyUnit   = TimeUnit.MILLISECONDS;
+        private Transport.Factory        transportFactory;
+        private boolean                  jmx;
+        private boolean                  canonicalTags;
+        private int                      tagSetCacheSize  = DEFAULT_TAG_SET_CACHE_SIZE;
+        private int                      cardinalityLimit;
+        private CardinalityPolicy        cardinalityPolicy = CardinalityPolicy.DROP;
+        private String                   spillDirectory;
+        private int                      spillMaxBytes;
+        private int                      spillReplayRate  = DEFAULT_SPILL_REPLAY_RATE;
+        private Executor                 senderExecutor;
+        private boolean                  virtualThreads;
+        private long                     addressRefreshInterval;
+        private TimeUnit                 addressRefreshIntervalUnit = TimeUnit.MILLISECONDS;
+        private boolean                  deferredEncoding;
+        private long                     telemetryInterval;
+        private TimeUnit                 telemetryIntervalUnit = TimeUnit.MILLISECONDS;
+        private String                   unixSocketPath;
+        private int                      maxPacketSize;
+
+        private Builder() {
+        }
+
+        private static double[] defaultSampleRates() {
+            double[] rates = new double[MetricType.values().length];
+            Arrays.fill(rates, 1d);
+            return rates;
+        }
+
+        public Builder prefix(String prefix) {
+            this.prefix = prefix;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        public Builder port(int port) {
+            if (port <= 0 || port > 65535) {
+                throw new IllegalArgumentException("port must be in [1, 65535]: " + port);
+            }
+            this.port = port;
+            return this;
+        }
+
+        public Builder constantTags(String... constantTags) {
+            this.constantTags = constantTags == null ? null : constantTags.clone();
+            return this;
+        }
+
+        public Builder errorHandler(StatsDClientErrorHandler errorHandler) {
+            this.errorHandler = errorHandler == null ? NO_OP_HANDLER : errorHandler;
+            return this;
+        }
+
+        /**
+         * Maximum number of messages waiting to be sent per sender thread, rounded up to a power of two.
+         */
+        public Builder queueCapacity(int queueCapacity) {
+            if (queueCapacity <= 0) {
+                throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+            }
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * Number of sender threads. Each one drains its own queue of {@link #queueCapacity(int)} messages into
+         * packets sent through its own transport.
+         */
+        public Builder senderThreads(int senderThreads) {
+            if (senderThreads <= 0) {
+                throw new IllegalArgumentException("senderThreads must be positive: " + senderThreads);
+            }
+            this.senderThreads = senderThreads;
+            return this;
+        }
+
+        public Builder shardingStrategy(ShardingStrategy shardingStrategy) {
+            if (shardingStrategy == null) {
+                throw new IllegalArgumentException("shardingStrategy must not be null");
+            }
+            this.shardingStrategy = shardingStrategy;
+            return this;
+        }
+
+        public Builder overflowPolicy(OverflowPolicy overflowPolicy) {
+            if (overflowPolicy == null) {
+                throw new IllegalArgumentException("overflowPolicy must not be null");
+            }
+            this.overflowPolicy = overflowPolicy;
+            return this;
+        }
+
+        /**
+         * How long a sender waits for room under {@link OverflowPolicy#BLOCK}.
+         */
+        public Builder offerTimeout(long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException("offerTimeout must not be negative: " + timeout);
+            }
+            this.offerTimeout = timeout;
+            this.offerTimeoutUnit = unit;
+            return this;
+        }
+
+        /**
+         * Sums counters and keeps the last gauge value per aspect and tags in memory, sending one line per series
+         * every {@link #flushInterval(long, TimeUnit) flush interval} instead of one line per call.
+         */
+        public Builder aggregation(boolean aggregation) {
+            this.aggregation = aggregation;
+            return this;
+        }
+
+        /**
+         * Feeds timer and histogram samples into an in-memory quantile sketch per aspect and tags, and sends
+         * {@code .count}, {@code .min}, {@code .max}, {@code .avg}, {@code .p50}, {@code .p95} and {@code .p99}
+         * series every {@link #flushInterval(long, TimeUnit) flush interval} instead of every sample.
+         */
+        public Builder histogramSummaries(boolean histogramSummaries) {
+            this.histogramSummaries = histogramSummaries;
+            return this;
+        }
+
+        /**
+         * Sample rate used by the methods of {@code type} that take no explicit rate, between 0 (exclusive) and 1.
+         * Calls are dropped at random on the caller thread and the rest are sent with a {@code |@rate} suffix so
+         * the agent scales them back up.
+         */
+        public Builder defaultSampleRate(MetricType type, double sampleRate) {
+            if (!(sampleRate > 0 && sampleRate <= 1)) {
+                throw new IllegalArgumentException("sampleRate must be in (0, 1]: " + sampleRate);
+            }
+            if (type == MetricType.SET && sampleRate < 1) {
+                throw new IllegalArgumentException("set values cannot be sampled, the agent cannot scale a distinct count");
+            }
+            this.defaultSampleRates[type.ordinal()] = sampleRate;
+            return this;
+        }
+
+        /**
+         * Sends each set value once per {@link #flushInterval(long, TimeUnit) flush interval} and aspect and tags:
+         * repeats are dropped on the caller thread against a hash set of the values seen since the last flush. The
+         * agent counts the same distinct values from far fewer lines, at the cost of 8 to 16 bytes per distinct
+         * value of an interval. Each series remembers at most 8192 values per interval, further ones are sent
+         * every time.
+         */
+        public Builder uniqueSets(boolean uniqueSets) {
+            this.uniqueSets = uniqueSets;
+            return this;
+        }
+
+        public Builder flushInterval(long interval, TimeUnit unit) {
+            if (interval <= 0 || unit.toMillis(interval) <= 0) {
+                throw new IllegalArgumentException("flushInterval must be at least one millisecond: " + interval + " " + unit);
+            }
+            this.flushInterval = interval;
+            this.flushIntervalUnit = unit;
+            return this;
+        }
+
+        /**
+         * Longest a line waits in a partly filled packet for more lines before the packet is sent. Zero sends as
+         * soon as the queue is empty, which means more, smaller packets.
+         */
+        public Builder maxLatency(long maxLatency, TimeUnit unit) {
+            if (maxLatency < 0) {
+                throw new IllegalArgumentException("maxLatency must not be negative: " + maxLatency);
+            }
+            this.maxLatency = maxLatency;
+            this.maxLatencyUnit = unit;
+            return this;
+        }
+
+        /**
+         * Looks the {@link #hostname(String) host name} up again every {@code interval} in the background and
+         * switches the sender threads to the new address, for agents whose address changes, as on Kubernetes. Sends
+         * never wait for a lookup, and a failed one keeps the previous address. Off by default: the host name is
+         * resolved once, when the client starts.
+         */
+        public Builder addressRefreshInterval(long interval, TimeUnit unit) {
+            if (interval <= 0 || unit.toMillis(interval) <= 0) {
+                throw new IllegalArgumentException("addressRefreshInterval must be at least one millisecond: " + interval + " " + unit);
+            }
+            this.addressRefreshInterval = interval;
+            this.addressRefreshIntervalUnit = unit;
+            return this;
+        }
+
+        /**
+         * Sends to a co-located agent through the Unix domain datagram socket at {@code path} instead of UDP to
+         * {@link #hostname(String)} and {@link #port(int)}. Packets default to 8192 bytes, and a busy agent makes
+         * the sender threads wait instead of losing packets. Needs {@code com.github.jnr:jnr-unixsocket}.
+         */
+        public Builder unixSocket(String path) {
+            if (path == null || path.isEmpty()) {
+                throw new IllegalArgumentException("unixSocket path must not be empty");
+            }
+            this.unixSocketPath = path;
+            this.transportFactory = null;
+            return this;
+        }
+
+        /**
+         * Sends through transports opened by {@code transportFactory}, one per sender thread, instead of UDP.
+         */
+        public Builder transport(Transport.Factory transportFactory) {
+            if (transportFactory == null) {
+                throw new IllegalArgumentException("transportFactory must not be null");
+            }
+            this.transportFactory = transportFactory;
+            this.unixSocketPath = null;
+            return this;
+        }
+
+        /**
+         * Largest packet a sender thread builds, in bytes. Defaults to 1500 for UDP, which fits one Ethernet frame;
+         * lower it for networks with a smaller MTU, or raise it up to 65507 on loopback to pack more lines per
+         * system call. Unix domain sockets default to 8192. A custom {@link #transport(Transport.Factory)
+         * transport} is capped at its own {@link Transport#maxPacketSize()}. {@link #build()} rejects UDP packets
+         * larger than 65507 bytes, which no UDP datagram can carry.
+         */
+        public Builder maxPacketSize(int maxPacketSize) {
+            if (maxPacketSize <= 0) {
+                throw new IllegalArgumentException("maxPacketSize must be positive: " + maxPacketSize);
+            }
+            this.maxPacketSize = maxPacketSize;
+            return this;
+        }
+
+        /**
+         * Moves all encoding to the sender threads. A call then only writes the aspect, type, value, sample rate and
+         * tag references into a preallocated queue slot, which keeps the cost on request paths to a few dozen
+         * nanoseconds and allocation free; the sender thread formats and UTF-8 encodes the line straight into the
+         * packet. Tag arrays must not be changed after the call, which varargs calls never do.
+         */
+        public Builder deferredEncoding(boolean deferredEncoding) {
+            this.deferredEncoding = deferredEncoding;
+            return this;
+        }
+
+        /**
+         * Sorts the constant and given tags of every line and drops duplicates, so the agent sees one series per
+         * tag set whatever order callers pass the tags in. The rendered suffixes of recently used tag sets are
+         * cached, see {@link #tagSetCacheSize(int)}. Off by default, which keeps the constant tags first and the
+         * given tags in reverse order.
+         */
+        public Builder canonicalTags(boolean canonicalTags) {
+            this.canonicalTags = canonicalTags;
+            return this;
+        }
+
+        /**
+         * How many distinct tag arrays keep their rendered suffix with {@link #canonicalTags(boolean)}; 1024 by
+         * default. Tag sets that fall out of the cache are rendered again on their next use.
+         */
+        public Builder tagSetCacheSize(int tagSetCacheSize) {
+            if (tagSetCacheSize <= 0) {
+                throw new IllegalArgumentException("tagSetCacheSize must be positive: " + tagSetCacheSize);
+            }
+            this.tagSetCacheSize = tagSetCacheSize;
+            return this;
+        }
+
+        /**
+         * Guards the client and the agent against tag explosions, such as request ids put into tags: each metric
+         * name may send at most {@code maxTagSetsPerMetric} distinct tag sets, and lines with further tag sets are
+         * dropped or collapsed under {@code policy}. The error handler is told once per metric that reaches the
+         * limit, and {@link CloudInsightStatsDClient#getCardinalityLimitedMetrics()} lists them. Tag sets are
+         * counted regardless of tag order. At most 10000 metric names are tracked, and lines of further names are
+         * handled as if their metric were over the limit. Off by default. Metric handles are not limited, their
+         * tags are fixed when they are created.
+         */
+        public Builder cardinalityLimit(int maxTagSetsPerMetric, CardinalityPolicy policy) {
+            if (maxTagSetsPerMetric <= 0) {
+                throw new IllegalArgumentException("maxTagSetsPerMetric must be positive: " + maxTagSetsPerMetric);
+            }
+            if (policy == null) {
+                throw new IllegalArgumentException("policy must not be null");
+            }
+            this.cardinalityLimit = maxTagSetsPerMetric;
+            this.cardinalityPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Keeps packets on disk while the agent is unreachable instead of losing them, for series that must not go
+         * missing during an agent restart. Each sender thread maps a segment file of {@code maxBytesPerSender}
+         * bytes in {@code directory}, which one client must not share with another: the segment files are locked,
+         * and a client that finds them locked fails to start. UDP transports then connect to the agent, so a stopped
+         * agent fails sends with ICMP port-unreachable errors; a failed send starts spilling, the packet whose send
+         * revealed the outage is lost. Once the transport reports the agent back,
+         * spilled packets are replayed at {@link #spillReplayRate(int)}. Packets left in the segment at close are
+         * replayed by the next client that spills to the same directory. A full segment drops new packets until
+         * replays have freed half of it. Lines are counted as sent once they are spilled.
+         */
+        public Builder spillToDisk(String directory, int maxBytesPerSender) {
+            if (directory == null || directory.isEmpty()) {
+                throw new IllegalArgumentException("spill directory must not be empty");
+            }
+            if (maxBytesPerSender < 64 * 1024) {
+                throw new IllegalArgumentException("maxBytesPerSender must be at least 64 KiB: " + maxBytesPerSender);
+            }
+            this.spillDirectory = directory;
+            this.spillMaxBytes = maxBytesPerSender;
+            return this;
+        }
+
+        /**
+         * Packets per second each sender thread replays from its spill segment once the agent is back; 1000 by
+         * default.
+         */
+        public Builder spillReplayRate(int packetsPerSecond) {
+            if (packetsPerSecond <= 0) {
+                throw new IllegalArgumentException("spillReplayRate must be positive: " + packetsPerSecond);
+            }
+            this.spillReplayRate = packetsPerSecond;
+            return this;
+        }
+
+        /**
+         * Runs the sender loops on {@code senderExecutor} instead of on threads the client starts itself. Each
+         * sender thread is a task that runs until the client is closed, so the executor needs a thread per sender
+         * to spare; the client never shuts it down.
+         */
+        public Builder senderExecutor(Executor senderExecutor) {
+            if (senderExecutor == null) {
+                throw new IllegalArgumentException("senderExecutor must not be null");
+            }
+            this.senderExecutor = senderExecutor;
+            this.virtualThreads = false;
+            return this;
+        }
+
+        /**
+         * Runs the sender loops on virtual threads, which only take a carrier thread while they encode or send.
+         * Needs Java 21 or later at run time; {@link #build()} fails otherwise.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            if (virtualThreads) {
+                this.senderExecutor = null;
+            }
+            return this;
+        }
+
+        /**
+         * Registers the client's {@link ClientTelemetry} as an MXBean named
+         * {@code cloudinsight.sdk:type=CloudInsightStatsDClient,name=client-<n>} until {@link CloudInsightStatsDClient#stop()}.
+         */
+        public Builder jmx(boolean jmx) {
+            this.jmx = jmx;
+            return this;
+        }
+
+        /**
+         * Sends the client's own counters through itself as {@code cloudinsight.client.*} series, without the
+         * prefix, once per {@code interval}. Off by default.
+         */
+        public Builder telemetryInterval(long interval, TimeUnit unit) {
+            if (interval <= 0 || unit.toMillis(interval) <= 0) {
+                throw new IllegalArgumentException("telemetryInterval must be at least one millisecond: " + interval + " " + unit);
+            }
+            this.telemetryInterval = interval;
+            this.telemetryIntervalUnit = unit;
+            return this;
+        }
+
+        /**
+         * Applies the options set as {@code cloudinsight.statsd.*} system properties or, for those without one,
+         * {@code CLOUDINSIGHT_STATSD_*} environment variables, so that operations can tune a deployed service
+         * without a code change. The environment variable of a property is its name upper-cased with dots turned
+         * into underscores: {@code cloudinsight.statsd.queue.capacity} is {@code CLOUDINSIGHT_STATSD_QUEUE_CAPACITY}.
+         * <p>
+         * The options read are {@code prefix}, {@code host}, {@code port}, {@code tags} (comma separated),
+         * {@code unix.socket}, {@code max.packet.size}, {@code queue.capacity}, {@code sender.threads},
+         * {@code sharding.strategy} and {@code overflow.policy} (constant names), {@code offer.timeout.ms},
+         * {@code max.latency.ms}, {@code flush.interval.ms}, {@code address.refresh.interval.ms},
+         * {@code telemetry.interval.ms}, {@code tag.set.cache.size}, {@code cardinality.limit} and
+         * {@code cardinality.policy} (a constant name, applied with the limit), {@code spill.directory} with
+         * {@code spill.max.bytes}, {@code spill.replay.rate}, and {@code aggregation}, {@code histogram.summaries},
+         * {@code unique.sets}, {@code deferred.encoding}, {@code canonical.tags}, {@code virtual.threads} and
+         * {@code jmx} ({@code true} or {@code false}). Each replaces what was set before the call and is replaced by
+         * what is set after it, so calling this last lets the environment override the code. An invalid value fails
+         * with an {@link IllegalArgumentException} naming its source.
+         */
+        public Builder fromEnvironment() {
+            Properties systemProperties = System.getProperties();
+            Map<String, String> properties = new HashMap<String, String>();
+            for (String name : systemProperties.stringPropertyNames()) {
+                if (name.startsWith(PROPERTY_PREFIX)) {
+                    properties.put(name, systemProperties.getProperty(name));
+                }
+            }
+            return configure(properties, System.getenv());
+        }
+
+        Builder configure(Map<String, String> properties, Map<String, String> environment) {
+            for (String setting : SETTINGS) {
+                String source = PROPERTY_PREFIX + setting;
+                String value = properties.get(source);
+                if (value == null) {
+                    source = ENVIRONMENT_PREFIX + setting.replace('.', '_').toUpperCase(Locale.ROOT);
+                    value = environment.get(source);
+                }
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    apply(setting, value.trim());
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(String.format("Invalid %s '%s': %s", source, value, e.getMessage()), e);
+                }
+            }
+            return this;
+        }
+
+        private void apply(String setting, String value) {
+            if ("prefix".equals(setting)) {
+                prefix(value);
+            } else if ("host".equals(setting)) {
+                hostname(value);
+            } else if ("port".equals(setting)) {
+                port(Integer.parseInt(value));
+            } else if ("tags".equals(setting)) {
+                constantTags(value.isEmpty() ? null : value.split("\\s*,\\s*"));
+            } else if ("unix.socket".equals(setting)) {
+                unixSocket(value);
+            } else if ("max.packet.size".equals(setting)) {
+                maxPacketSize(Integer.parseInt(value));
+            } else if ("queue.capacity".equals(setting)) {
+                queueCapacity(Integer.parseInt(value));
+            } else if ("sender.threads".equals(setting)) {
+                senderThreads(Integer.parseInt(value));
+            } else if ("sharding.strategy".equals(setting)) {
+                shardingStrategy(ShardingStrategy.valueOf(value.toUpperCase(Locale.ROOT)));
+            } else if ("overflow.policy".equals(setting)) {
+                overflowPolicy(OverflowPolicy.valueOf(value.toUpperCase(Locale.ROOT)));
+            } else if ("offer.timeout.ms".equals(setting)) {
+                offerTimeout(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if ("max.latency.ms".equals(setting)) {
+                maxLatency(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if ("flush.interval.ms".equals(setting)) {
+                flushInterval(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if ("aggregation".equals(setting)) {
+                aggregation(parseBoolean(value));
+            } else if ("histogram.summaries".equals(setting)) {
+                histogramSummaries(parseBoolean(value));
+            } else if ("unique.sets".equals(setting)) {
+                uniqueSets(parseBoolean(value));
+            } else if ("deferred.encoding".equals(setting)) {
+                deferredEncoding(parseBoolean(value));
+            } else if ("canonical.tags".equals(setting)) {
+                canonicalTags(parseBoolean(value));
+            } else if ("tag.set.cache.size".equals(setting)) {
+                tagSetCacheSize(Integer.parseInt(value));
+            } else if ("cardinality.policy".equals(setting)) {
+                // read before cardinality.limit, which applies it
+                cardinalityPolicy = CardinalityPolicy.valueOf(value.toUpperCase(Locale.ROOT));
+            } else if ("cardinality.limit".equals(setting)) {
+                cardinalityLimit(Integer.parseInt(value), cardinalityPolicy);
+            } else if ("spill.max.bytes".equals(setting)) {
+                // read before spill.directory, which applies it
+                int maxBytes = Integer.parseInt(value);
+                if (maxBytes < 64 * 1024) {
+                    throw new IllegalArgumentException("maxBytesPerSender must be at least 64 KiB: " + maxBytes);
+                }
+                spillMaxBytes = maxBytes;
+            } else if ("spill.directory".equals(setting)) {
+                if (spillMaxBytes == 0) {
+                    throw new IllegalArgumentException("needs spill.max.bytes as well");
+                }
+                spillToDisk(value, spillMaxBytes);
+            } else if ("spill.replay.rate".equals(setting)) {
+                spillReplayRate(Integer.parseInt(value));
+            } else if ("address.refresh.interval.ms".equals(setting)) {
+                addressRefreshInterval(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if ("telemetry.interval.ms".equals(setting)) {
+                telemetryInterval(Long.parseLong(value), TimeUnit.MILLISECONDS);
+            } else if ("virtual.threads".equals(setting)) {
+                virtualThreads(parseBoolean(value));
+            } else if ("jmx".equals(setting)) {
+                jmx(parseBoolean(value));
+            }
+        }
+
+        /** Unlike {@link Boolean#parseBoolean(String)}, a typo fails instead of reading as false. */
+        private static boolean parseBoolean(String value) {
+            if ("true".equalsIgnoreCase(value)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(value)) {
+                return false;
+            }
+            throw new IllegalArgumentException("expected true or false");
+        }
+
+        /**
+         * @throws IllegalArgumentException if options contradict each other
+         * @throws StatsDClientException if the transports or sender threads cannot be started
+         */
+        public CloudInsightStatsDClient build() throws StatsDClientException {
+            validate();
+            return new CloudInsightStatsDClient(this);
+        }
+
+        private void validate() {
+            boolean udp = transportFactory == null && unixSocketPath == null;
+            if (udp && maxPacketSize > UdpTransport.MAX_PACKET_SIZE) {
+                throw new IllegalArgumentException(String.format(
+                        "maxPacketSize %d exceeds the largest UDP datagram of %d bytes", maxPacketSize, UdpTransport.MAX_PACKET_SIZE));
+            }
+            if (!udp && addressRefreshInterval > 0) {
+                throw new IllegalArgumentException("addressRefreshInterval only applies to UDP, not to a Unix socket or custom transport");
+            }
+            if (spillDirectory != null && maxPacketSize > spillMaxBytes - SpillBuffer.HEADER_SIZE - 4) {
+                throw new IllegalArgumentException(String.format(
+                        "maxPacketSize %d does not fit in a spill segment of %d bytes", maxPacketSize, spillMaxBytes));
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package cloudinsight.sdk;
+
+/**
+ * A counter bound to one aspect and tag set, created by {@link CloudInsightStatsDClient#counter(String, String...)}.
+ */
+public final class Counter extends MetricHandle {
+
+    private final Aggregator.CounterCell cell;
+
+    Counter(CloudInsightStatsDClient client, String aspect, String[] tags) {
+        super(client, MetricType.COUNTER, aspect, tags);
+        this.cell = aggregator == null ? null : aggregator.counterCell(aspect, tags, true);
+    }
+
+    public void count(long delta) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.add(delta);
+        } else {
+            send(delta);
+        }
+    }
+
+    public void increment() {
+        count(1);
+    }
+
+    public void decrement() {
+        count(-1);
+    }
+}
@@ -0,0 +1,147 @@
+package cloudinsight.sdk;
+
+
+/**
+ * An event for {@link StatsDClient#recordEvent(Event, String...)}, such as a deploy, sent in the agent's
+ * {@code _e{title length,text length}:title|text} format. Events carry no prefix; the client's constant tags are
+ * added.
+ */
+public final class Event {
+
+    public enum Priority {
+        NORMAL, LOW
+    }
+
+    public enum AlertType {
+        INFO, WARNING, ERROR, SUCCESS
+    }
+
+    private final String    title;
+    private final String    text;
+    private final long      timestamp;
+    private final String    hostname;
+    private final String    aggregationKey;
+    private final Priority  priority;
+    private final AlertType alertType;
+    private final String    sourceTypeName;
+
+    private Event(Builder builder) {
+        this.title = builder.title;
+        this.text = builder.text;
+        this.timestamp = builder.timestamp;
+        this.hostname = builder.hostname;
+        this.aggregationKey = builder.aggregationKey;
+        this.priority = builder.priority;
+        this.alertType = builder.alertType;
+        this.sourceTypeName = builder.sourceTypeName;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return seconds since the epoch, or 0 to let the agent use the time it receives the event
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getAggregationKey() {
+        return aggregationKey;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    public AlertType getAlertType() {
+        return alertType;
+    }
+
+    public String getSourceTypeName() {
+        return sourceTypeName;
+    }
+
+    public static final class Builder {
+        private String    title;
+        private String    text = "";
+        private long      timestamp;
+        private String    hostname;
+        private String    aggregationKey;
+        private Priority  priority;
+        private AlertType alertType;
+        private String    sourceTypeName;
+
+        private Builder() {
+        }
+
+        public Builder title(String title) {
+            this.title = title;
+            return this;
+        }
+
+        /**
+         * The body of the event; the client cuts it short if the event would not fit in one packet.
+         */
+        public Builder text(String text) {
+            this.text = text == null ? "" : text;
+            return this;
+        }
+
+        /**
+         * @param timestamp seconds since the epoch
+         */
+        public Builder timestamp(long timestamp) {
+            if (timestamp < 0) {
+                throw new IllegalArgumentException("timestamp must not be negative: " + timestamp);
+            }
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        public Builder aggregationKey(String aggregationKey) {
+            this.aggregationKey = aggregationKey;
+            return this;
+        }
+
+        public Builder priority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Builder alertType(AlertType alertType) {
+            this.alertType = alertType;
+            return this;
+        }
+
+        public Builder sourceTypeName(String sourceTypeName) {
+            this.sourceTypeName = sourceTypeName;
+            return this;
+        }
+
+        public Event build() {
+            if (title == null || title.isEmpty()) {
+                throw new IllegalArgumentException("event title must not be empty");
+            }
+            return new Event(this);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package cloudinsight.sdk;
+
+/**
+ * A gauge bound to one aspect and tag set, created by {@link CloudInsightStatsDClient#gauge(String, String...)}.
+ */
+public final class Gauge extends MetricHandle {
+
+    private final Aggregator.GaugeCell cell;
+
+    Gauge(CloudInsightStatsDClient client, String aspect, String[] tags) {
+        super(client, MetricType.GAUGE, aspect, tags);
+        this.cell = aggregator == null ? null : aggregator.gaugeCell(aspect, tags, true);
+    }
+
+    public void set(long value) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.set(value);
+        } else {
+            send(value);
+        }
+    }
+
+    public void set(double value) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.set(value);
+        } else {
+            send(value);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package cloudinsight.sdk;
+
+/**
+ * A histogram bound to one aspect and tag set, created by
+ * {@link CloudInsightStatsDClient#histogram(String, String...)}.
+ */
+public final class Histogram extends MetricHandle {
+
+    private final Aggregator.SketchCell cell;
+
+    Histogram(CloudInsightStatsDClient client, String aspect, String[] tags) {
+        super(client, MetricType.HISTOGRAM, aspect, tags);
+        this.cell = aggregator == null ? null : aggregator.sketchCell(MetricType.HISTOGRAM, aspect, tags, true);
+    }
+
+    public void record(long value) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.record(value);
+        } else {
+            send(value);
+        }
+    }
+
+    public void record(double value) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.record(value);
+        } else {
+            send(value);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package cloudinsight.sdk;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses metric lines, {@code name:value|type[|@rate][|#tag,...]}, in place from the bytes of a packet.
+ * <p>
+ * A successful {@link #parse(byte[], int, int)} leaves the offsets of the name, value and tags and the parsed
+ * value, type and sample rate in the parser's fields, so a receiver can look at a line without allocating; only
+ * {@link #toMetric()} copies it out. Sections after the type other than the sample rate and the tags are skipped.
+ * A parser is reused for every line of one receiving thread and is not thread-safe.
+ */
+final class LineParser {
+
+    private static final Charset  ASCII           = Charset.forName("US-ASCII");
+
+    /** Values with more significant digits than this go through {@link Double#parseDouble(String)}. */
+    private static final int      MAX_FAST_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN   = new double[MAX_FAST_DIGITS + 1];
+
+    /** What {@link MessageEncoder#NUMBER_FORMATTERS} writes for an infinite value, after the sign. */
+    private static final byte[]   INFINITY        = "\u221E".getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+
+    static {
+        POWERS_OF_TEN[0] = 1d;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    byte[]     bytes;
+    int        nameStart;
+    int        nameEnd;
+    int        valueStart;
+    int        valueEnd;
+    /** -1 if the line has no tags. */
+    int        tagsStart;
+    int        tagsEnd;
+    int        lineStart;
+    int        lineEnd;
+    MetricType type;
+    /** NaN for a set value that is not a number. */
+    double     value;
+    double     sampleRate;
+    /** Set by {@link #parseNumber(byte[], int, int)}. */
+    private double number;
+
+    /**
+     * @return false if the bytes from {@code start} to {@code end} are not a well-formed metric line
+     */
+    boolean parse(byte[] bytes, int start, int end) {
+        this.bytes = bytes;
+        int colon = indexOf(bytes, start, end, ':');
+        if (colon <= start) {
+            return false;
+        }
+        int pipe = indexOf(bytes, colon + 1, end, '|');
+        if (pipe <= colon + 1) {
+            return false;
+        }
+        int typeEnd = indexOf(bytes, pipe + 1, end, '|');
+        if (typeEnd < 0) {
+            typeEnd = end;
+        }
+        type = MetricType.forSymbol(bytes, pipe + 1, typeEnd - pipe - 1);
+        if (type == null) {
+            return false;
+        }
+        if (parseNumber(bytes, colon + 1, pipe)) {
+            value = number;
+        } else if (type == MetricType.SET) {
+            value = Double.NaN;
+        } else {
+            return false;
+        }
+        sampleRate = 1d;
+        tagsStart = -1;
+        tagsEnd = -1;
+        for (int section = typeEnd; section < end;) {
+            int next = indexOf(bytes, section + 1, end, '|');
+            if (next < 0) {
+                next = end;
+            }
+            if (next > section + 1 && bytes[section + 1] == '@') {
+                if (!parseNumber(bytes, section + 2, next) || !(number > 0 && number <= 1)) {
+                    return false;
+                }
+                sampleRate = number;
+            } else if (next > section + 1 && bytes[section + 1] == '#') {
+                tagsStart = section + 2;
+                tagsEnd = next;
+            }
+            section = next;
+        }
+        lineStart = start;
+        lineEnd = end;
+        nameStart = start;
+        nameEnd = colon;
+        valueStart = colon + 1;
+        valueEnd = pipe;
+        return true;
+    }
+
+    /**
+     * Copies the last parsed line out of the packet.
+     */
+    ReceivedMetric toMetric() {
+        List<String> tags;
+        if (tagsStart < 0 || tagsStart == tagsEnd) {
+            tags = Collections.emptyList();
+        } else {
+            tags = new ArrayList<String>();
+            int tagStart = tagsStart;
+            for (int i = tagsStart; i <= tagsEnd; i++) {
+                if (i == tagsEnd || bytes[i] == ',') {
+                    tags.add(string(tagStart, i));
+                    tagStart = i + 1;
+                }
+            }
+            tags = Collections.unmodifiableList(tags);
+        }
+        return new ReceivedMetric(string(nameStart, nameEnd), string(valueStart, valueEnd), value, type, sampleRate,
+                tags, string(lineStart, lineEnd));
+    }
+
+    private String string(int start, int end) {
+        return new String(bytes, start, end - start, CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    /**
+     * Parses a decimal number into {@link #number}. Up to 15 significant digits without an exponent, which covers
+     * what the client sends, are converted without allocating and rounded correctly; other numbers take the slow
+     * path, which also reads the infinity sign the client writes for infinite values.
+     *
+     * @return false if the bytes are not a number
+     */
+    private boolean parseNumber(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        int unsigned = i;
+        long mantissa = 0;
+        int seen = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean point = false;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (b >= '0' && b <= '9') {
+                seen++;
+                if (mantissa != 0 || b != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (point) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                break;
+            }
+        }
+        if (i == end && seen > 0 && digits <= MAX_FAST_DIGITS && fractionDigits <= MAX_FAST_DIGITS) {
+            // both operands are exact, so the division rounds once, like parseDouble
+            double magnitude = mantissa / POWERS_OF_TEN[fractionDigits];
+            number = negative ? -magnitude : magnitude;
+            return true;
+        }
+        if (end - unsigned == INFINITY.length && startsWith(bytes, unsigned, INFINITY)) {
+            number = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            return true;
+        }
+        try {
+            number = Double.parseDouble(new String(bytes, start, end - start, ASCII));
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int indexOf(byte[] bytes, int start, int end, char c) {
+        for (int i = start; i < end; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,519 @@
+package cloudinsight.sdk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A stand-in for the agent that receives what clients send over UDP, for tests and for load tests of a service's
+ * metric output on a machine without an agent. It only listens on UDP: a client configured with
+ * {@link CloudInsightStatsDClient.Builder#unixSocket(String)} needs its own Unix datagram socket to receive from.
+ * <p>
+ * One daemon thread receives every packet into the same buffer and parses its lines in place, so the bytes of a
+ * line are only copied to keep it. Per metric name the receiver keeps a {@link Series} of running totals, which
+ * costs no allocation once the name was seen, for up to {@value #DEFAULT_MAX_SERIES} names by default; lines of
+ * further names are only counted, so a service sending a name per request cannot exhaust the heap. The first
+ * {@code retainedLines} metric lines are also kept whole as {@link ReceivedMetric}s. Events, service checks and
+ * malformed lines are counted, and events and service checks are kept as text up to the same bound. Everything is stored in lock-free structures, so tests read it and run
+ * the assertion helpers from any thread while packets arrive. {@link #clear()} swaps all of it for empty structures
+ * at once, so every packet is recorded entirely before or entirely after a clear.
+ */
+public final class LocalStatsDReceiver implements Closeable {
+
+    /** Lines kept whole by {@link #LocalStatsDReceiver(int)}. */
+    public static final int                        DEFAULT_RETAINED_LINES = 100000;
+
+    /** Metric names with a {@link Series} unless a constructor says otherwise. */
+    public static final int                        DEFAULT_MAX_SERIES     = 100000;
+
+    /** The largest UDP payload, so that no packet is cut short. */
+    private static final int                       MAX_PACKET_SIZE        = 65536;
+
+    /** Room for bursts while the receiving thread is descheduled; the kernel may cap it lower. */
+    private static final int                       RECEIVE_BUFFER_SIZE    = 8 * 1024 * 1024;
+
+    private static final byte[]                    EVENT_START            = {'_', 'e', '{'};
+
+    private static final byte[]                    SERVICE_CHECK_START    = {'_', 's', 'c', '|'};
+
+    private final DatagramChannel                  channel;
+    private final Thread                           thread;
+    private final int                              retainedLines;
+    private final int                              maxSeries;
+    private volatile Received                      received               = new Received();
+    /** Waiters of {@link #awaitMetricLines(long, long, TimeUnit)} wait on this. */
+    private final Object                           arrivals               = new Object();
+    /** The smallest line count a waiter registered, Long.MAX_VALUE while nobody waits. */
+    private volatile long                          awaitedLines           = Long.MAX_VALUE;
+
+    /**
+     * Receives on {@code port}, or on an ephemeral port if it is 0, and keeps the first
+     * {@value #DEFAULT_RETAINED_LINES} metric lines.
+     */
+    public LocalStatsDReceiver(int port) throws IOException {
+        this(port, DEFAULT_RETAINED_LINES);
+    }
+
+    /**
+     * @param retainedLines how many metric lines to keep whole, 0 to keep only the per-name totals
+     */
+    public LocalStatsDReceiver(int port, int retainedLines) throws IOException {
+        this(port, retainedLines, DEFAULT_MAX_SERIES);
+    }
+
+    /**
+     * @param retainedLines how many metric lines to keep whole, 0 to keep only the per-name totals
+     * @param maxSeries how many metric names to keep totals for; lines of further names are only counted by
+     *            {@link #getUntrackedLines()}
+     */
+    public LocalStatsDReceiver(int port, int retainedLines, int maxSeries) throws IOException {
+        if (retainedLines < 0) {
+            throw new IllegalArgumentException("retainedLines must not be negative: " + retainedLines);
+        }
+        if (maxSeries <= 0) {
+            throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+        }
+        this.retainedLines = retainedLines;
+        this.maxSeries = maxSeries;
+        this.channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                receive();
+            }
+        }, "cloudinsight-local-receiver-" + port());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the port the receiver is bound to
+     */
+    public int port() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            throw new StatsDClientException("Receiver is closed", e);
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        byte[] data = buffer.array();
+        LineParser parser = new LineParser();
+        NameKey probe = new NameKey();
+        while (channel.isOpen()) {
+            buffer.clear();
+            try {
+                channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                continue;
+            }
+            int length = buffer.position();
+            if (length == 0) {
+                // a probe of a spilling client
+                continue;
+            }
+            // read once per packet, so a clear never splits one
+            Received received = this.received;
+            received.packets++;
+            received.bytes += length;
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || data[i] == '\n') {
+                    int end = i;
+                    while (end > start && data[end - 1] <= ' ') {
+                        end--;
+                    }
+                    if (end > start) {
+                        accept(received, data, start, end, parser, probe);
+                    }
+                    start = i + 1;
+                }
+            }
+            if (received.metricLines >= awaitedLines) {
+                synchronized (arrivals) {
+                    // woken waiters that need more lines register again
+                    awaitedLines = Long.MAX_VALUE;
+                    arrivals.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void accept(Received received, byte[] data, int start, int end, LineParser parser, NameKey probe) {
+        if (startsWith(data, start, end, EVENT_START) || startsWith(data, start, end, SERVICE_CHECK_START)) {
+            if (received.messagesRetained < retainedLines) {
+                received.messagesRetained++;
+                received.messages.add(new String(data, start, end - start, CloudInsightStatsDClient.MESSAGE_CHARSET));
+            }
+            received.messageLines++;
+            return;
+        }
+        if (!parser.parse(data, start, end)) {
+            received.malformedLines++;
+            return;
+        }
+        Series totals = received.series.get(probe.reset(data, parser.nameStart, parser.nameEnd));
+        if (totals == null && received.seriesCount < maxSeries) {
+            NameKey key = probe.copy();
+            totals = new Series(key.toString());
+            received.series.put(key, totals);
+            received.seriesCount++;
+        }
+        if (totals != null) {
+            totals.add(parser.type, parser.value, parser.sampleRate);
+        } else {
+            received.untrackedLines++;
+        }
+        if (received.metricsRetained < retainedLines) {
+            received.metricsRetained++;
+            received.metrics.add(parser.toMetric());
+        }
+        // counted last, so a line that awaitMetricLines waited for is already stored
+        received.metricLines++;
+    }
+
+    private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public long getPackets() {
+        return received.packets;
+    }
+
+    public long getBytes() {
+        return received.bytes;
+    }
+
+    /**
+     * @return the metric lines received, including those not kept whole
+     */
+    public long getMetricLines() {
+        return received.metricLines;
+    }
+
+    /**
+     * @return the events and service checks received
+     */
+    public long getEventAndServiceCheckLines() {
+        return received.messageLines;
+    }
+
+    public long getMalformedLines() {
+        return received.malformedLines;
+    }
+
+    /**
+     * @return the metric lines whose name got no {@link Series} because the receiver kept totals for as many names
+     *         as it may already; they are still counted by {@link #getMetricLines()}
+     */
+    public long getUntrackedLines() {
+        return received.untrackedLines;
+    }
+
+    /**
+     * @return the metric lines kept whole, in the order they arrived
+     */
+    public List<ReceivedMetric> metrics() {
+        return new ArrayList<ReceivedMetric>(received.metrics);
+    }
+
+    /**
+     * @return the metric lines named {@code name} kept whole, in the order they arrived
+     */
+    public List<ReceivedMetric> metrics(String name) {
+        List<ReceivedMetric> named = new ArrayList<ReceivedMetric>();
+        for (ReceivedMetric metric : received.metrics) {
+            if (metric.getName().equals(name)) {
+                named.add(metric);
+            }
+        }
+        return named;
+    }
+
+    /**
+     * @return the events and service checks kept, as sent
+     */
+    public List<String> eventsAndServiceChecks() {
+        return new ArrayList<String>(received.messages);
+    }
+
+    /**
+     * @return the totals of the metric lines named {@code name}, or null if none arrived
+     */
+    public Series series(String name) {
+        return received.series.get(new NameKey().reset(name.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET)));
+    }
+
+    /**
+     * @return the totals of every metric name received
+     */
+    public List<Series> allSeries() {
+        return Collections.unmodifiableList(new ArrayList<Series>(received.series.values()));
+    }
+
+    /**
+     * Forgets everything received so far, counts included. A packet arriving while this runs is recorded either
+     * entirely or not at all.
+     */
+    public void clear() {
+        received = new Received();
+    }
+
+    /**
+     * Waits until at least {@code count} metric lines arrived in total. The receiving thread wakes the waiter with
+     * the packet that reaches the count.
+     *
+     * @throws AssertionError if they did not within {@code timeout}
+     */
+    public void awaitMetricLines(long count, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (arrivals) {
+            for (;;) {
+                // registered before the count is read, so the receiving thread either sees the target or the
+                // count read here already includes its lines
+                if (count < awaitedLines) {
+                    awaitedLines = count;
+                }
+                if (getMetricLines() >= count) {
+                    return;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new AssertionError(String.format("Received %d of %d metric lines within %d %s",
+                            getMetricLines(), count, timeout, unit.name().toLowerCase(Locale.ROOT)));
+                }
+                TimeUnit.NANOSECONDS.timedWait(arrivals, remaining);
+            }
+        }
+    }
+
+    /**
+     * @throws AssertionError unless a kept metric line reads exactly {@code line}
+     */
+    public void assertReceived(String line) {
+        Queue<ReceivedMetric> metrics = received.metrics;
+        for (ReceivedMetric metric : metrics) {
+            if (metric.toString().equals(line)) {
+                return;
+            }
+        }
+        throw new AssertionError("Did not receive " + line + " among " + describe(metrics));
+    }
+
+    /**
+     * Checks the sum of the values named {@code name}, each divided by its sample rate, which for a counter is
+     * the total the agent counts.
+     *
+     * @throws AssertionError unless it is within {@code delta} of {@code expected}
+     */
+    public void assertTotal(String name, double expected, double delta) {
+        Series totals = series(name);
+        if (totals == null) {
+            throw new AssertionError("Did not receive " + name);
+        }
+        if (!(Math.abs(totals.getSum() - expected) <= delta)) {
+            throw new AssertionError(String.format("Total of %s is %s, expected %s", name, totals.getSum(), expected));
+        }
+    }
+
+    /**
+     * @throws AssertionError if a line that is neither a metric, an event nor a service check arrived
+     */
+    public void assertNoMalformedLines() {
+        long malformedLines = getMalformedLines();
+        if (malformedLines > 0) {
+            throw new AssertionError("Received " + malformedLines + " malformed lines");
+        }
+    }
+
+    private static String describe(Queue<ReceivedMetric> metrics) {
+        StringBuilder sb = new StringBuilder("[");
+        int shown = 0;
+        for (ReceivedMetric metric : metrics) {
+            if (shown == 10) {
+                sb.append(", ...");
+                break;
+            }
+            sb.append(shown++ == 0 ? "" : ", ").append(metric);
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Stops receiving; lines already received stay readable.
+     */
+    public void close() throws IOException {
+        channel.close();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * What arrived since the receiver started or was last cleared.
+     */
+    private static final class Received {
+        final ConcurrentMap<NameKey, Series> series   = new ConcurrentHashMap<NameKey, Series>();
+        final Queue<ReceivedMetric>          metrics  = new ConcurrentLinkedQueue<ReceivedMetric>();
+        final Queue<String>                  messages = new ConcurrentLinkedQueue<String>();
+        // written by the receiving thread only
+        int                                  metricsRetained;
+        int                                  messagesRetained;
+        int                                  seriesCount;
+        volatile long                        packets;
+        volatile long                        bytes;
+        volatile long                        metricLines;
+        volatile long                        messageLines;
+        volatile long                        malformedLines;
+        volatile long                        untrackedLines;
+    }
+
+    /**
+     * Running totals of the metric lines of one name. Only the receiving thread writes them.
+     */
+    public static final class Series {
+        private final String        name;
+        private volatile MetricType type;
+        private volatile long       lines;
+        private volatile double     sum;
+        private volatile double     lastValue;
+
+        Series(String name) {
+            this.name = name;
+        }
+
+        void add(MetricType type, double value, double sampleRate) {
+            this.type = type;
+            this.lastValue = value;
+            if (!Double.isNaN(value)) {
+                this.sum = sum + value / sampleRate;
+            }
+            this.lines = lines + 1;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the type of the last line
+         */
+        public MetricType getType() {
+            return type;
+        }
+
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the sum of the values, each divided by its sample rate
+         */
+        public double getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the value of the last line, which for a gauge is the value the agent keeps
+         */
+        public double getLastValue() {
+            return lastValue;
+        }
+    }
+
+    /**
+     * A metric name as a range of bytes. The receiving thread probes with one instance over the packet buffer and
+     * copies it only for a name it has not seen, like {@link TagSetCache}'s keys.
+     */
+    private static final class NameKey {
+        private byte[] data;
+        private int    start;
+        private int    end;
+        private int    hash;
+
+        NameKey reset(byte[] data) {
+            return reset(data, 0, data.length);
+        }
+
+        NameKey reset(byte[] data, int start, int end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + data[i];
+            }
+            this.hash = hash;
+            return this;
+        }
+
+        NameKey copy() {
+            byte[] name = new byte[end - start];
+            System.arraycopy(data, start, name, 0, name.length);
+            return new NameKey().reset(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof NameKey)) {
+                return false;
+            }
+            NameKey other = (NameKey) obj;
+            if (hash != other.hash || end - start != other.end - other.start) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (data[start + i] != other.data[other.start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(data, start, end - start, CloudInsightStatsDClient.MESSAGE_CHARSET);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package cloudinsight.sdk;
+
+import java.nio.ByteBuffer;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Writes statsd lines straight into a reusable byte array, without going through
+ * {@link String#format} or intermediate strings.
+ * <p>
+ * Numbers are rendered by hand and produce the same text as {@link #NUMBER_FORMATTERS}:
+ * no grouping, at most 6 fraction digits, and "NaN". Doubles that are too close to a rounding
+ * tie or too large to render exactly by hand fall back to the formatter, so the wire output never
+ * changes. Instances are not thread-safe, use one per thread.
+ */
+final class MessageEncoder {
+
+    static final ThreadLocal<NumberFormat> NUMBER_FORMATTERS = new ThreadLocal<NumberFormat>() {
+        @Override
+        protected NumberFormat initialValue() {
+
+            NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+            numberFormatter.setGroupingUsed(false);
+            numberFormatter.setMaximumFractionDigits(6);
+
+            if (numberFormatter instanceof DecimalFormat) {
+                final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+                final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+                symbols.setNaN("NaN");
+                decimalFormat.setDecimalFormatSymbols(symbols);
+            }
+
+            return numberFormatter;
+        }
+    };
+
+    private static final int    DEFAULT_CAPACITY     = 256;
+
+    private static final int    FRACTION_DIGITS      = 6;
+
+    private static final double FRACTION_SCALE       = 1000000d;
+
+    /** Largest scaled value whose product error stays far below the rounding guard. */
+    private static final double MAX_SCALED_FAST_PATH = (double) (1L << 46);
+
+    /** Largest integral double rendered as a long; below 2^53 so every digit is exact. */
+    private static final double MAX_INTEGRAL_FAST_PATH = 1e15;
+
+    /** Distance from a .5 tie under which the formatter decides the rounding instead. */
+    private static final double TIE_GUARD            = 0.05;
+
+    private static final byte[] MIN_LONG_BYTES       = Long.toString(Long.MIN_VALUE).getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+
+    private static final byte[] NAN_BYTES            = "NaN".getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+
+    private static final byte[] NULL_BYTES           = "null".getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+
+    private byte[] buffer;
+    private int    position;
+
+    MessageEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    MessageEncoder(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    MessageEncoder reset() {
+        position = 0;
+        return this;
+    }
+
+    int length() {
+        return position;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    void writeTo(ByteBuffer target) {
+        target.put(buffer, 0, position);
+    }
+
+    MessageEncoder writeByte(char ascii) {
+        ensureCapacity(1);
+        buffer[position++] = (byte) ascii;
+        return this;
+    }
+
+    MessageEncoder writeBytes(byte[] bytes) {
+        if (bytes != null) {
+            writeBytes(bytes, bytes.length);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the first {@code length} bytes of {@code bytes}.
+     */
+    MessageEncoder writeBytes(byte[] bytes, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, 0, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * Appends {@code value} as UTF-8, the same bytes {@code value.getBytes(MESSAGE_CHARSET)} produces.
+     */
+    MessageEncoder writeString(String value) {
+        if (value == null) {
+            return writeBytes(NULL_BYTES);
+        }
+        final int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                ensureCapacity(1);
+                buffer[position++] = (byte) c;
+            } else if (c < 0x800) {
+                ensureCapacity(2);
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                ensureCapacity(4);
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, String.getBytes replaces it with '?'
+                ensureCapacity(1);
+                buffer[position++] = (byte) '?';
+            } else {
+                ensureCapacity(3);
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    MessageEncoder writeLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            return writeBytes(MIN_LONG_BYTES);
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int digits = digitCount(value);
+        ensureCapacity(digits);
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+        return this;
+    }
+
+    MessageEncoder writeDouble(double value) {
+        if (Double.isNaN(value)) {
+            return writeBytes(NAN_BYTES);
+        }
+        final boolean negative = (Double.doubleToRawLongBits(value) & Long.MIN_VALUE) != 0;
+        final double magnitude = Math.abs(value);
+
+        if (magnitude < MAX_INTEGRAL_FAST_PATH && magnitude == Math.rint(magnitude)) {
+            if (negative) {
+                writeByte('-');
+            }
+            return writeLong((long) magnitude);
+        }
+
+        final double scaled = magnitude * FRACTION_SCALE;
+        if (scaled < MAX_SCALED_FAST_PATH) {
+            final double floor = Math.floor(scaled);
+            final double fraction = scaled - floor;
+            if (Math.abs(fraction - 0.5d) > TIE_GUARD) {
+                long rounded = (long) floor + (fraction > 0.5d ? 1 : 0);
+                if (negative) {
+                    // the formatter keeps the sign even when the value rounds to zero
+                    writeByte('-');
+                }
+                writeLong(rounded / (long) FRACTION_SCALE);
+                writeFraction(rounded % (long) FRACTION_SCALE);
+                return this;
+            }
+        }
+        return writeString(NUMBER_FORMATTERS.get().format(value));
+    }
+
+    private void writeFraction(long fraction) {
+        if (fraction == 0) {
+            return;
+        }
+        int digits = FRACTION_DIGITS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        ensureCapacity(digits + 1);
+        buffer[position++] = (byte) '.';
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + (fraction % 10));
+            fraction /= 10;
+        }
+        position = end;
+    }
+
+    private static int digitCount(long value) {
+        int digits = 1;
+        long bound = 10;
+        while (digits < 19 && value >= bound) {
+            digits++;
+            bound *= 10;
+        }
+        return digits;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = position + extra;
+        if (required > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length << 1));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cloudinsight.sdk;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Base of the pre-registered metric handles. The prefix, aspect, type, sample rate and tags of the line are
+ * rendered to UTF-8 once, when the handle is created, so recording only formats the value.
+ */
+abstract class MetricHandle {
+
+    private final CloudInsightStatsDClient client;
+    private final String                   aspect;
+    private final byte[]                   head;
+    private final byte[]                   tail;
+    private final double                   sampleRate;
+    /** The client's aggregator if lines of this handle are aggregated, otherwise null. */
+    final Aggregator                       aggregator;
+
+    MetricHandle(CloudInsightStatsDClient client, MetricType type, String aspect, String[] tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.sampleRate = client.defaultSampleRate(type);
+        this.head = client.encodeHead(aspect);
+        this.tail = client.encodeTail(type, sampleRate, tags);
+        this.aggregator = sampleRate >= 1 ? client.aggregatorFor(type) : null;
+    }
+
+    /**
+     * @return true if this call is dropped by the sample rate
+     */
+    final boolean sampledOut() {
+        return sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate;
+    }
+
+    final void send(long value) {
+        client.send(head, value, tail, aspect);
+    }
+
+    final void send(double value) {
+        client.send(head, value, tail, aspect);
+    }
+
+    public String getAspect() {
+        return aspect;
+    }
+}
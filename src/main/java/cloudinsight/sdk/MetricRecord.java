@@ -0,0 +1,68 @@
+package cloudinsight.sdk;
+
+/**
+ * One line waiting in a sender queue in deferred encoding mode, a preallocated slot the caller fills in place. It
+ * holds either an already encoded {@link #line}, a handle's {@link #head} and {@link #tail} around a value, or the
+ * raw aspect, value, type, sample rate and tags with the {@link #client} whose prefix and constant tags go around
+ * them; the sender thread turns it into bytes.
+ */
+final class MetricRecord {
+
+    CloudInsightStatsDClient client;
+    String                   aspect;
+    MetricType               type;
+    boolean                  floating;
+    long                     longValue;
+    double                   doubleValue;
+    double                   sampleRate;
+    String[]                 tags;
+    byte[]                   head;
+    byte[]                   tail;
+    byte[]                   line;
+
+    void set(CloudInsightStatsDClient client, String aspect, MetricType type, long value, double sampleRate, String[] tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.type = type;
+        this.floating = false;
+        this.longValue = value;
+        this.sampleRate = sampleRate;
+        this.tags = tags;
+    }
+
+    void set(CloudInsightStatsDClient client, String aspect, MetricType type, double value, double sampleRate, String[] tags) {
+        this.client = client;
+        this.aspect = aspect;
+        this.type = type;
+        this.floating = true;
+        this.doubleValue = value;
+        this.sampleRate = sampleRate;
+        this.tags = tags;
+    }
+
+    void set(byte[] head, long value, byte[] tail) {
+        this.head = head;
+        this.floating = false;
+        this.longValue = value;
+        this.tail = tail;
+    }
+
+    void set(byte[] head, double value, byte[] tail) {
+        this.head = head;
+        this.floating = true;
+        this.doubleValue = value;
+        this.tail = tail;
+    }
+
+    /**
+     * Drops the references, so a slot does not keep strings and tag arrays reachable after it was sent.
+     */
+    void clear() {
+        client = null;
+        aspect = null;
+        tags = null;
+        head = null;
+        tail = null;
+        line = null;
+    }
+}
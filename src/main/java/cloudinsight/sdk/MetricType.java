@@ -0,0 +1,49 @@
+package cloudinsight.sdk;
+
+
+/**
+ * The statsd metric types, used to pick per-type client settings such as the default sample rate.
+ */
+public enum MetricType {
+
+    COUNTER("c"),
+    GAUGE("g"),
+    TIMER("ms"),
+    HISTOGRAM("h"),
+    /** Counts the distinct values sent per flush interval on the agent. */
+    SET("s"),
+    /** A histogram whose percentiles the agent computes across all hosts. */
+    DISTRIBUTION("d");
+
+    private static final MetricType[] TYPES = values();
+
+    private final byte[] type;
+
+    MetricType(String type) {
+        this.type = type.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    byte[] bytes() {
+        return type;
+    }
+
+    /**
+     * @return the type whose wire symbol is {@code length} bytes of {@code bytes} from {@code offset}, or null
+     */
+    static MetricType forSymbol(byte[] bytes, int offset, int length) {
+        for (MetricType candidate : TYPES) {
+            byte[] symbol = candidate.type;
+            if (symbol.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && bytes[offset + i] == symbol[i]) {
+                i++;
+            }
+            if (i == length) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
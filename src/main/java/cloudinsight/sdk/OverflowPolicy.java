@@ -0,0 +1,18 @@
+package cloudinsight.sdk;
+
+
+/**
+ * What {@link CloudInsightStatsDClient} does with a new message when its queue is full.
+ */
+public enum OverflowPolicy {
+
+    /** Discard the message being sent. */
+    DROP_NEWEST,
+
+    /** Evict the oldest queued message to make room for the new one. */
+    DROP_OLDEST,
+
+    /** Wait up to the configured offer timeout for room, then discard the message being sent. */
+    BLOCK
+
+}
@@ -0,0 +1,298 @@
+package cloudinsight.sdk;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Mergeable quantile sketch over logarithmic buckets, in the style of HdrHistogram.
+ * <p>
+ * Every power of two is split into {@value #SUB_BUCKETS} linear sub-buckets, taken straight from the exponent and
+ * the top mantissa bits of the double, so recording needs neither {@link Math#log} nor a lock: it is one atomic
+ * increment on the bucket plus the min, max, sum and count updates. Quantiles are reported as bucket midpoints, within
+ * 1/128 relative error. The bucket array of an exponent is allocated the first time a value lands in it, after that
+ * recording allocates nothing.
+ */
+final class QuantileSketch {
+
+    static final int             SUB_BUCKETS_BITS = 6;
+
+    static final int             SUB_BUCKETS      = 1 << SUB_BUCKETS_BITS;
+
+    /** Magnitudes below 2^MIN_EXPONENT are counted as zero. */
+    static final int             MIN_EXPONENT     = -30;
+
+    /** Magnitudes of 2^(MAX_EXPONENT + 1) and above land in the last bucket. */
+    static final int             MAX_EXPONENT     = 62;
+
+    private static final int     EXPONENTS        = MAX_EXPONENT - MIN_EXPONENT + 1;
+
+    private static final int     MANTISSA_SHIFT   = 52 - SUB_BUCKETS_BITS;
+
+    private static final double  MIN_MAGNITUDE    = Math.scalb(1d, MIN_EXPONENT);
+
+    private final AtomicReferenceArray<AtomicLongArray> positive = new AtomicReferenceArray<AtomicLongArray>(EXPONENTS);
+    private final AtomicReferenceArray<AtomicLongArray> negative = new AtomicReferenceArray<AtomicLongArray>(EXPONENTS);
+    private final AtomicLong     zeros            = new AtomicLong();
+    private final LongAdder      count            = new LongAdder();
+    private final DoubleAdder    sum              = new DoubleAdder();
+    private final AtomicLong     minBits          = new AtomicLong(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY));
+    private final AtomicLong     maxBits          = new AtomicLong(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY));
+
+    void record(double value) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        // min and max go first, so a value whose bucket a drain takes is already covered by the min and max it reads
+        updateMin(value);
+        updateMax(value);
+        sum.add(value);
+        double magnitude = Math.abs(value);
+        if (magnitude < MIN_MAGNITUDE) {
+            zeros.incrementAndGet();
+        } else {
+            AtomicReferenceArray<AtomicLongArray> buckets = value < 0 ? negative : positive;
+            int exponent = Math.min(Math.getExponent(magnitude), MAX_EXPONENT + 1);
+            int subBucket;
+            if (exponent > MAX_EXPONENT) {
+                exponent = MAX_EXPONENT;
+                subBucket = SUB_BUCKETS - 1;
+            } else {
+                subBucket = (int) (Double.doubleToRawLongBits(magnitude) >>> MANTISSA_SHIFT) & (SUB_BUCKETS - 1);
+            }
+            bucketsFor(buckets, exponent - MIN_EXPONENT).incrementAndGet(subBucket);
+        }
+        count.increment();
+    }
+
+    /**
+     * Adds everything recorded in {@code other} to this sketch; {@code other} is left untouched.
+     */
+    void merge(QuantileSketch other) {
+        mergeBuckets(positive, other.positive);
+        mergeBuckets(negative, other.negative);
+        zeros.addAndGet(other.zeros.get());
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        updateMin(Double.longBitsToDouble(other.minBits.get()));
+        updateMax(Double.longBitsToDouble(other.maxBits.get()));
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * Moves the recorded values into {@code snapshot} and resets this sketch. The bucket counts and the sum of values
+     * recorded concurrently end up in either this snapshot or the next one. Such a value may also widen the min and
+     * max of this snapshot while its bucket lands in the next one; a snapshot whose min or max misses one of its own
+     * buckets falls back to the midpoint of that bucket.
+     */
+    void drainTo(Snapshot snapshot) {
+        snapshot.clear();
+        snapshot.zeros = zeros.getAndSet(0);
+        snapshot.count = snapshot.zeros;
+        snapshot.count += drainBuckets(positive, snapshot.positive);
+        snapshot.count += drainBuckets(negative, snapshot.negative);
+        // the count is only a hint for flushes, the snapshot counts what the buckets held
+        count.add(-snapshot.count);
+        // sumThenReset loses adds that race it on Java 8; subtracting what was read keeps them for the next drain
+        snapshot.sum = sum.sum();
+        sum.add(-snapshot.sum);
+        snapshot.min = Double.longBitsToDouble(minBits.getAndSet(Double.doubleToRawLongBits(Double.POSITIVE_INFINITY)));
+        snapshot.max = Double.longBitsToDouble(maxBits.getAndSet(Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY)));
+        snapshot.coverBuckets();
+    }
+
+    private static AtomicLongArray bucketsFor(AtomicReferenceArray<AtomicLongArray> buckets, int index) {
+        AtomicLongArray array = buckets.get(index);
+        if (array == null) {
+            buckets.compareAndSet(index, null, new AtomicLongArray(SUB_BUCKETS));
+            array = buckets.get(index);
+        }
+        return array;
+    }
+
+    private static void mergeBuckets(AtomicReferenceArray<AtomicLongArray> target, AtomicReferenceArray<AtomicLongArray> source) {
+        for (int e = 0; e < EXPONENTS; e++) {
+            AtomicLongArray from = source.get(e);
+            if (from == null) {
+                continue;
+            }
+            for (int s = 0; s < SUB_BUCKETS; s++) {
+                long n = from.get(s);
+                if (n != 0) {
+                    bucketsFor(target, e).addAndGet(s, n);
+                }
+            }
+        }
+    }
+
+    private static long drainBuckets(AtomicReferenceArray<AtomicLongArray> source, long[] target) {
+        long drained = 0;
+        for (int e = 0; e < EXPONENTS; e++) {
+            AtomicLongArray from = source.get(e);
+            if (from == null) {
+                continue;
+            }
+            for (int s = 0; s < SUB_BUCKETS; s++) {
+                if (from.get(s) != 0) {
+                    long n = from.getAndSet(s, 0);
+                    target[e * SUB_BUCKETS + s] = n;
+                    drained += n;
+                }
+            }
+        }
+        return drained;
+    }
+
+    private void updateMin(double value) {
+        long current;
+        do {
+            current = minBits.get();
+        } while (value < Double.longBitsToDouble(current) && !minBits.compareAndSet(current, Double.doubleToRawLongBits(value)));
+    }
+
+    private void updateMax(double value) {
+        long current;
+        do {
+            current = maxBits.get();
+        } while (value > Double.longBitsToDouble(current) && !maxBits.compareAndSet(current, Double.doubleToRawLongBits(value)));
+    }
+
+    /**
+     * A drained, single-threaded copy of a sketch, reused across flushes.
+     */
+    static final class Snapshot {
+        final long[] positive = new long[EXPONENTS * SUB_BUCKETS];
+        final long[] negative = new long[EXPONENTS * SUB_BUCKETS];
+        long         zeros;
+        long         count;
+        double       sum;
+        double       min;
+        double       max;
+
+        void clear() {
+            Arrays.fill(positive, 0);
+            Arrays.fill(negative, 0);
+            zeros = 0;
+            count = 0;
+            sum = 0;
+        }
+
+        /**
+         * Moves a min or max that misses the lowest or highest non-empty bucket to the midpoint of that bucket.
+         */
+        void coverBuckets() {
+            if (count == 0) {
+                return;
+            }
+            int lowest = lastNonEmpty(negative);
+            if (lowest >= 0) {
+                if (min > -edge(lowest, 0)) {
+                    min = -midpoint(lowest);
+                }
+            } else if (zeros != 0) {
+                if (min >= MIN_MAGNITUDE) {
+                    min = 0;
+                }
+            } else {
+                lowest = firstNonEmpty(positive);
+                if (min >= edge(lowest, 1)) {
+                    min = midpoint(lowest);
+                }
+            }
+            int highest = lastNonEmpty(positive);
+            if (highest >= 0) {
+                if (max < edge(highest, 0)) {
+                    max = midpoint(highest);
+                }
+            } else if (zeros != 0) {
+                if (max <= -MIN_MAGNITUDE) {
+                    max = 0;
+                }
+            } else {
+                highest = firstNonEmpty(negative);
+                if (max <= -edge(highest, 1)) {
+                    max = -midpoint(highest);
+                }
+            }
+        }
+
+        double average() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the midpoint of the bucket holding the value at that rank, clamped to the recorded min and max
+         */
+        double quantile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            // negatives from the largest magnitude down, then zeros, then positives upward
+            for (int i = negative.length - 1; i >= 0; i--) {
+                seen += negative[i];
+                if (seen >= rank) {
+                    return clamp(-midpoint(i));
+                }
+            }
+            seen += zeros;
+            if (seen >= rank) {
+                return clamp(0);
+            }
+            for (int i = 0; i < positive.length; i++) {
+                seen += positive[i];
+                if (seen >= rank) {
+                    return clamp(midpoint(i));
+                }
+            }
+            return max;
+        }
+
+        private double clamp(double value) {
+            return Math.max(min, Math.min(max, value));
+        }
+
+        private static int firstNonEmpty(long[] buckets) {
+            for (int i = 0; i < buckets.length; i++) {
+                if (buckets[i] != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static int lastNonEmpty(long[] buckets) {
+            for (int i = buckets.length - 1; i >= 0; i--) {
+                if (buckets[i] != 0) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static double midpoint(int index) {
+            return edge(index, 0.5d);
+        }
+
+        /**
+         * @return the lower bound of the bucket magnitudes for an offset of 0, the upper bound for 1
+         */
+        private static double edge(int index, double offset) {
+            if (offset == 1 && index == EXPONENTS * SUB_BUCKETS - 1) {
+                // the last bucket also holds everything above it
+                return Double.POSITIVE_INFINITY;
+            }
+            int exponent = index / SUB_BUCKETS + MIN_EXPONENT;
+            int subBucket = index % SUB_BUCKETS;
+            return Math.scalb(1d + (subBucket + offset) / SUB_BUCKETS, exponent);
+        }
+    }
+}
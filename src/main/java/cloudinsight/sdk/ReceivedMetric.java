@@ -0,0 +1,102 @@
+package cloudinsight.sdk;
+
+import java.util.List;
+
+/**
+ * A metric line as {@link LocalStatsDReceiver} received it, split into its name, value, type, sample rate and tags.
+ */
+public final class ReceivedMetric {
+
+    private final String       name;
+    private final String       value;
+    private final double       doubleValue;
+    private final MetricType   type;
+    private final double       sampleRate;
+    private final List<String> tags;
+    private final String       line;
+
+    ReceivedMetric(String name, String value, double doubleValue, MetricType type, double sampleRate, List<String> tags, String line) {
+        this.name = name;
+        this.value = value;
+        this.doubleValue = doubleValue;
+        this.type = type;
+        this.sampleRate = sampleRate;
+        this.tags = tags;
+        this.line = line;
+    }
+
+    /**
+     * Parses one metric line, {@code name:value|type[|@rate][|#tag,...]}.
+     *
+     * @throws IllegalArgumentException if {@code line} is not a well-formed metric line
+     */
+    public static ReceivedMetric parse(String line) {
+        byte[] bytes = line.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+        LineParser parser = new LineParser();
+        if (!parser.parse(bytes, 0, bytes.length)) {
+            throw new IllegalArgumentException("Not a metric line: " + line);
+        }
+        return parser.toMetric();
+    }
+
+    /**
+     * @return the name, including the client's prefix
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the value as sent
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the value as a number, or NaN for a set value that is not one
+     */
+    public double getDoubleValue() {
+        return doubleValue;
+    }
+
+    public MetricType getType() {
+        return type;
+    }
+
+    /**
+     * @return the sample rate, 1 for lines sent without one
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the tags in the order they were sent, constant tags included
+     */
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public boolean hasTag(String tag) {
+        return tags.contains(tag);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return this == obj || obj instanceof ReceivedMetric && line.equals(((ReceivedMetric) obj).line);
+    }
+
+    @Override
+    public int hashCode() {
+        return line.hashCode();
+    }
+
+    /**
+     * @return the line as it was received
+     */
+    @Override
+    public String toString() {
+        return line;
+    }
+}
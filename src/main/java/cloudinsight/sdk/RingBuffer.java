@@ -0,0 +1,317 @@
+package cloudinsight.sdk;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free queue over a preallocated ring of slots.
+ * <p>
+ * Every slot carries a sequence number, so producers claim a slot with a single CAS on the tail and publish it by
+ * advancing the slot sequence, the same scheme the Disruptor uses. Any number of threads may offer and poll; the
+ * client has one consumer, but producers also poll when they evict the oldest entry. The capacity is rounded up to
+ * a power of two, and is at least two.
+ * <p>
+ * A ring can also hold preallocated mutable slots instead of handing elements over: producers {@link #claim()} a
+ * slot, fill it in place and {@link #publish(long)} it, and the consumer {@link #claimOldest()}, reads and
+ * {@link #release(long)} it. A ring is used one way or the other, never both.
+ */
+final class RingBuffer<E> {
+
+    private static final int              MAX_CAPACITY = 1 << 30;
+
+    private final int                     mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray         sequences;
+    private final AtomicLong              head    = new AtomicLong();
+    private final AtomicLong              tail    = new AtomicLong();
+    private final AtomicReference<Thread> waiter  = new AtomicReference<Thread>();
+    private volatile boolean              wakeUp;
+
+    /**
+     * A ring of preallocated slots, all created up front by {@code slots}.
+     */
+    RingBuffer(int requestedCapacity, Supplier<E> slots) {
+        this(requestedCapacity);
+        for (int i = 0; i < elements.length(); i++) {
+            elements.set(i, slots.get());
+        }
+    }
+
+    RingBuffer(int requestedCapacity) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + requestedCapacity);
+        }
+        // a single slot cannot tell a published element from a free slot, so the ring holds at least two
+        int capacity = 2;
+        while (capacity < requestedCapacity && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        this.mask = capacity - 1;
+        this.elements = new AtomicReferenceArray<E>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int size() {
+        long size = tail.get() - head.get();
+        return size < 0 ? 0 : (int) Math.min(size, capacity());
+    }
+
+    boolean isEmpty() {
+        return peek() == null;
+    }
+
+    /**
+     * @return false if the ring is full
+     */
+    boolean offer(E element) {
+        long position = tail.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    publish(position);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Retries a full ring until {@code timeout} expires, backing off with short parks.
+     */
+    boolean offer(E element, long timeout, TimeUnit unit) {
+        if (offer(element)) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoff = 1000L;
+        for (;;) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(backoff, remaining));
+            if (offer(element)) {
+                return true;
+            }
+            backoff = Math.min(backoff << 1, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    E poll() {
+        long position = head.get();
+        for (;;) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Claims the next free slot for writing; the slot stays invisible to the consumer until published.
+     *
+     * @return the position of the slot, or -1 if the ring is full
+     */
+    long claim() {
+        long position = tail.get();
+        for (;;) {
+            long difference = sequences.get((int) position & mask) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Retries a full ring until {@code timeout} expires, backing off like {@link #offer(Object, long, TimeUnit)}.
+     */
+    long claim(long timeout, TimeUnit unit) {
+        long position = claim();
+        if (position >= 0) {
+            return position;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long backoff = 1000L;
+        for (;;) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            LockSupport.parkNanos(Math.min(backoff, remaining));
+            position = claim();
+            if (position >= 0) {
+                return position;
+            }
+            backoff = Math.min(backoff << 1, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Hands a claimed slot, or the element just stored in it, over to the consumer.
+     */
+    void publish(long position) {
+        // a volatile write, not lazySet: a release store may pass the load of waiter below, so the producer could
+        // miss a consumer that registered and then still saw the ring empty, leaving the element for its timeout
+        sequences.set((int) position & mask, position + 1);
+        Thread parked = waiter.get();
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    /**
+     * Claims the oldest published slot for reading.
+     *
+     * @return the position of the slot, or -1 if the ring is empty
+     */
+    long claimOldest() {
+        long position = head.get();
+        for (;;) {
+            long difference = sequences.get((int) position & mask) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return -1;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    /**
+     * Gives a slot read through {@link #claimOldest()} back to the producers.
+     */
+    void release(long position) {
+        sequences.set((int) position & mask, position + mask + 1);
+    }
+
+    E slot(long position) {
+        return elements.get((int) position & mask);
+    }
+
+    /**
+     * Moves up to {@code batch.length} elements into {@code batch}, oldest first.
+     *
+     * @return the number of elements moved
+     */
+    int drainTo(E[] batch) {
+        int drained = 0;
+        while (drained < batch.length) {
+            E element = poll();
+            if (element == null) {
+                break;
+            }
+            batch[drained++] = element;
+        }
+        return drained;
+    }
+
+    /**
+     * Waits up to {@code timeout} for an element. Only one thread may wait at a time; producers wake it on offer,
+     * and {@link #wakeUp()} makes it return null early.
+     */
+    E poll(long timeout, TimeUnit unit) throws InterruptedException {
+        E element = poll();
+        if (element != null) {
+            return element;
+        }
+        return await(timeout, unit) ? poll() : null;
+    }
+
+    /**
+     * Waits up to {@code timeout} until the ring is not empty, under the same rules as
+     * {@link #poll(long, TimeUnit)}.
+     *
+     * @return false if the wait timed out or was ended by {@link #wakeUp()}
+     */
+    boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!isEmpty()) {
+            return true;
+        }
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final Thread current = Thread.currentThread();
+        waiter.set(current);
+        try {
+            for (;;) {
+                if (!isEmpty()) {
+                    return true;
+                }
+                if (wakeUp) {
+                    wakeUp = false;
+                    return false;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waiter.compareAndSet(current, null);
+        }
+    }
+
+    /**
+     * Ends the current or next {@link #await(long, TimeUnit)} wait of an empty ring.
+     */
+    void wakeUp() {
+        wakeUp = true;
+        Thread parked = waiter.get();
+        if (parked != null) {
+            LockSupport.unpark(parked);
+        }
+    }
+
+    E peek() {
+        long position = head.get();
+        int index = (int) position & mask;
+        if (sequences.get(index) == position + 1) {
+            return elements.get(index);
+        }
+        return null;
+    }
+}
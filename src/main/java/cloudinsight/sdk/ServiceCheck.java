@@ -0,0 +1,120 @@
+package cloudinsight.sdk;
+
+
+/**
+ * A service check for {@link StatsDClient#recordServiceCheck(ServiceCheck, String...)}, such as a health check
+ * result, sent in the agent's {@code _sc|name|status} format. Service checks carry no prefix; the client's constant
+ * tags are added.
+ */
+public final class ServiceCheck {
+
+    public enum Status {
+        OK(0), WARNING(1), CRITICAL(2), UNKNOWN(3);
+
+        private final int code;
+
+        Status(int code) {
+            this.code = code;
+        }
+
+        int code() {
+            return code;
+        }
+    }
+
+    private final String name;
+    private final Status status;
+    private final long   timestamp;
+    private final String hostname;
+    private final String message;
+
+    private ServiceCheck(Builder builder) {
+        this.name = builder.name;
+        this.status = builder.status;
+        this.timestamp = builder.timestamp;
+        this.hostname = builder.hostname;
+        this.message = builder.message;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return seconds since the epoch, or 0 to let the agent use the time it receives the check
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public static final class Builder {
+        private String name;
+        private Status status;
+        private long   timestamp;
+        private String hostname;
+        private String message;
+
+        private Builder() {
+        }
+
+        public Builder name(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder status(Status status) {
+            this.status = status;
+            return this;
+        }
+
+        /**
+         * @param timestamp seconds since the epoch
+         */
+        public Builder timestamp(long timestamp) {
+            if (timestamp < 0) {
+                throw new IllegalArgumentException("timestamp must not be negative: " + timestamp);
+            }
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        public Builder hostname(String hostname) {
+            this.hostname = hostname;
+            return this;
+        }
+
+        /**
+         * What the check found; the client cuts it short if the check would not fit in one packet.
+         */
+        public Builder message(String message) {
+            this.message = message;
+            return this;
+        }
+
+        public ServiceCheck build() {
+            if (name == null || name.isEmpty()) {
+                throw new IllegalArgumentException("service check name must not be empty");
+            }
+            if (status == null) {
+                throw new IllegalArgumentException("service check status must not be null");
+            }
+            return new ServiceCheck(this);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package cloudinsight.sdk;
+
+
+/**
+ * How {@link CloudInsightStatsDClient} spreads messages over its sender threads.
+ */
+public enum ShardingStrategy {
+
+    /** By calling thread; lines from one thread keep their order. */
+    BY_THREAD,
+
+    /** By aspect; lines of one metric keep their order, whichever thread sends them. */
+    BY_METRIC
+
+}
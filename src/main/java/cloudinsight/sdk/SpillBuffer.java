@@ -0,0 +1,202 @@
+package cloudinsight.sdk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * A size-capped, memory-mapped segment file that holds packets while the agent is unreachable, oldest first.
+ * <p>
+ * The file starts with a header of a magic number and the read and write offsets, followed by packets each prefixed
+ * with their length. The offsets are updated in the mapping as packets are appended and removed, so packets still in
+ * the file when the process stops are replayed by the next client that opens it. Once every packet was replayed the
+ * segment starts over from the beginning. A packet that does not fit in the rest of the segment moves the packets
+ * still to replay to the beginning, once the space replays freed can hold them, and is dropped otherwise: a full
+ * segment keeps dropping packets until replays catch up with half of it. An entry whose length runs outside the
+ * written part, left by a torn write or a corrupt file, drops the whole segment.
+ * <p>
+ * A buffer locks its file, so a second client or process cannot open the same segment. Only its sender thread uses a
+ * buffer.
+ */
+final class SpillBuffer implements Closeable {
+
+    private static final int MAGIC       = 0x43695370;
+    static final int         HEADER_SIZE = 12;
+
+    private final File             file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer segment;
+    private int                    readOffset;
+    private int                    writeOffset;
+
+    SpillBuffer(File file, int maxBytes) throws IOException {
+        if (maxBytes <= HEADER_SIZE + 4) {
+            throw new IllegalArgumentException("maxBytes too small for a spill segment: " + maxBytes);
+        }
+        this.file = file;
+        File directory = file.getParentFile();
+        if (directory != null) {
+            directory.mkdirs();
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            FileLock lock;
+            try {
+                lock = raf.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null) {
+                // two writers would overwrite each other's offsets
+                throw new IOException("Spill file " + file + " is used by another client");
+            }
+            this.segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        int readOffset = segment.getInt(4);
+        int writeOffset = segment.getInt(8);
+        if (segment.getInt(0) == MAGIC && HEADER_SIZE <= readOffset && readOffset <= writeOffset && writeOffset <= maxBytes) {
+            this.readOffset = readOffset;
+            this.writeOffset = writeOffset;
+        } else {
+            segment.putInt(0, MAGIC);
+            reset();
+        }
+    }
+
+    boolean isEmpty() {
+        return readOffset == writeOffset;
+    }
+
+    /**
+     * Appends the remaining bytes of {@code packet}.
+     *
+     * @return false if the segment had no room and the packet was dropped
+     */
+    boolean append(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (writeOffset + 4 + length > segment.capacity() && !(compact() && writeOffset + 4 + length <= segment.capacity())) {
+            return false;
+        }
+        segment.putInt(writeOffset, length);
+        ByteBuffer target = segment.duplicate();
+        target.position(writeOffset + 4);
+        target.put(packet);
+        writeOffset += 4 + length;
+        segment.putInt(8, writeOffset);
+        return true;
+    }
+
+    /**
+     * Moves the packets still to replay to the start of the segment, once they fit in the space replays freed, so
+     * the copy never overwrites a packet the header still points at.
+     *
+     * @return false if the packets did not fit
+     */
+    private boolean compact() {
+        int live = writeOffset - readOffset;
+        if (live > readOffset - HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer source = segment.duplicate();
+        source.position(readOffset).limit(writeOffset);
+        ByteBuffer target = segment.duplicate();
+        target.position(HEADER_SIZE);
+        target.put(source);
+        // the write offset first: a crash in between leaves the read offset at or past it, so reopening finds the
+        // segment empty or invalid rather than replaying packets twice
+        writeOffset = HEADER_SIZE + live;
+        segment.putInt(8, writeOffset);
+        readOffset = HEADER_SIZE;
+        segment.putInt(4, readOffset);
+        return true;
+    }
+
+    /**
+     * Copies the oldest packet into {@code packet}, cleared first and flipped after, without removing it. Packets
+     * larger than {@code packet}, spilled by a client with a larger packet size, are dropped.
+     *
+     * @return false if the segment is empty
+     */
+    boolean peek(ByteBuffer packet) {
+        packet.clear();
+        int length;
+        while ((length = oldestLength()) > packet.capacity()) {
+            skip(length);
+        }
+        if (length < 0) {
+            packet.flip();
+            return false;
+        }
+        ByteBuffer source = segment.duplicate();
+        source.position(readOffset + 4).limit(readOffset + 4 + length);
+        packet.put(source).flip();
+        return true;
+    }
+
+    /**
+     * Removes the oldest packet, the one {@link #peek(ByteBuffer)} returned.
+     */
+    void remove() {
+        int length = oldestLength();
+        if (length >= 0) {
+            skip(length);
+        }
+    }
+
+    /**
+     * @return the length of the oldest packet, or -1 if the segment is empty
+     */
+    private int oldestLength() {
+        if (isEmpty()) {
+            return -1;
+        }
+        int length = segment.getInt(readOffset);
+        if (length < 0 || length > writeOffset - readOffset - 4) {
+            // a torn or corrupt file: no later entry can be found either, so the whole segment is dropped
+            reset();
+            return -1;
+        }
+        return length;
+    }
+
+    private void skip(int length) {
+        readOffset += 4 + length;
+        if (readOffset == writeOffset) {
+            reset();
+        } else {
+            segment.putInt(4, readOffset);
+        }
+    }
+
+    private void reset() {
+        readOffset = HEADER_SIZE;
+        writeOffset = HEADER_SIZE;
+        segment.putInt(4, readOffset);
+        segment.putInt(8, writeOffset);
+    }
+
+    /**
+     * Writes the segment back to the file; the mapping itself goes away when it is garbage collected.
+     */
+    public void close() throws IOException {
+        try {
+            segment.force();
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -8,32 +8,82 @@ public interface StatsDClient {
 
     void count(String aspect, long delta, String... tags);
 
+    void count(String aspect, long delta, double sampleRate, String... tags);
+
     void incrementCounter(String aspect, String... tags);
 
+    void incrementCounter(String aspect, double sampleRate, String... tags);
+
     void increment(String aspect, String... tags);
 
+    void increment(String aspect, double sampleRate, String... tags);
+
     void decrementCounter(String aspect, String... tags);
 
+    void decrementCounter(String aspect, double sampleRate, String... tags);
+
     void decrement(String aspect, String... tags);
 
+    void decrement(String aspect, double sampleRate, String... tags);
+
     void recordGaugeValue(String aspect, double value, String... tags);
 
+    void recordGaugeValue(String aspect, double value, double sampleRate, String... tags);
+
     void gauge(String aspect, double value, String... tags);
 
+    void gauge(String aspect, double value, double sampleRate, String... tags);
+
     void recordGaugeValue(String aspect, long value, String... tags);
 
+    void recordGaugeValue(String aspect, long value, double sampleRate, String... tags);
+
     void gauge(String aspect, long value, String... tags);
 
+    void gauge(String aspect, long value, double sampleRate, String... tags);
+
     void recordExecutionTime(String aspect, long timeInMs, String... tags);
 
+    void recordExecutionTime(String aspect, long timeInMs, double sampleRate, String... tags);
+
     void time(String aspect, long value, String... tags);
 
+    void time(String aspect, long value, double sampleRate, String... tags);
+
+    void recordExecutionTimeNanos(String aspect, long nanos, String... tags);
+
+    void recordExecutionTimeNanos(String aspect, long nanos, double sampleRate, String... tags);
+
     void recordHistogramValue(String aspect, double value, String... tags);
 
+    void recordHistogramValue(String aspect, double value, double sampleRate, String... tags);
+
     void histogram(String aspect, double value, String... tags);
 
+    void histogram(String aspect, double value, double sampleRate, String... tags);
+
     void recordHistogramValue(String aspect, long value, String... tags);
 
+    void recordHistogramValue(String aspect, long value, double sampleRate, String... tags);
+
     void histogram(String aspect, long value, String... tags);
 
+    void histogram(String aspect, long value, double sampleRate, String... tags);
+
+    void set(String aspect, long value, String... tags);
+
+    void set(String aspect, String value, String... tags);
+
+    void distribution(String aspect, double value, String... tags);
+
+    void distribution(String aspect, double value, double sampleRate, String... tags);
+
+    void distribution(String aspect, long value, String... tags);
+
+    void distribution(String aspect, long value, double sampleRate, String... tags);
+
+    void recordEvent(Event event, String... tags);
+
+    void recordServiceCheck(ServiceCheck serviceCheck, String... tags);
+
 }
@@ -0,0 +1,167 @@
+package cloudinsight.sdk;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of rendered tag suffixes, keyed by the contents of a tag array.
+ * <p>
+ * A suffix holds the constant tags and the given tags sorted and without duplicates, already UTF-8 encoded, so
+ * {@code ["a:1","b:2"]} and {@code ["b:2","a:1"]} end up as the same series on the agent and a known tag set is
+ * rendered once. Lookups go through a per-thread probe key like {@link Aggregator}'s, so a hit allocates nothing
+ * and takes no lock. Eviction is an approximate LRU, the CLOCK algorithm: a hit only sets the entry's referenced
+ * bit, and once the cache is full an insert sweeps a hand over the cached keys, giving every referenced entry a
+ * second chance and replacing the first one that was not used since the hand last passed it.
+ */
+final class TagSetCache {
+
+    private static final ThreadLocal<Key> PROBES = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() {
+            return new Key();
+        }
+    };
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<Key, Entry>();
+    /** The cached keys in the order the clock hand visits them; guarded by itself. */
+    private final Key[]                     clock;
+    private int                             hand;
+    private final String[]                  constantTags;
+    private final int                       capacity;
+
+    /**
+     * @param constantTags tags merged into every suffix, or null
+     * @param capacity the number of tag sets kept
+     */
+    TagSetCache(String[] constantTags, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.constantTags = constantTags == null ? new String[0] : constantTags.clone();
+        this.capacity = capacity;
+        this.clock = new Key[capacity];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the encoded suffix for {@code tags}, starting with {@code |#}, or an empty array if there are no tags
+     * at all
+     */
+    byte[] suffix(String[] tags) {
+        Key probe = PROBES.get().reset(tags);
+        Entry entry = entries.get(probe);
+        if (entry == null) {
+            entry = new Entry(render(tags));
+            Key key = probe.copy();
+            Entry raced = entries.putIfAbsent(key, entry);
+            if (raced != null) {
+                entry = raced;
+            } else {
+                admit(key);
+            }
+        } else if (!entry.referenced) {
+            // a plain write, and only once per sweep, so threads hitting the same hot entry do not contend on it
+            entry.referenced = true;
+        }
+        return entry.suffix;
+    }
+
+    private byte[] render(String[] tags) {
+        TreeSet<String> sorted = new TreeSet<String>(Arrays.asList(constantTags));
+        if (tags != null) {
+            for (String tag : tags) {
+                if (tag != null) {
+                    sorted.add(tag);
+                }
+            }
+        }
+        if (sorted.isEmpty()) {
+            return new byte[0];
+        }
+        StringBuilder sb = new StringBuilder("|#");
+        for (String tag : sorted) {
+            if (sb.length() > 2) {
+                sb.append(',');
+            }
+            sb.append(tag);
+        }
+        return sb.toString().getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    /**
+     * Gives a newly cached key a place on the clock, evicting the first entry the hand finds unreferenced once the
+     * clock is full. Only misses get here; the hand passes every entry at most twice.
+     */
+    private void admit(Key key) {
+        synchronized (clock) {
+            for (;;) {
+                Key candidate = clock[hand];
+                if (candidate != null) {
+                    Entry entry = entries.get(candidate);
+                    if (entry != null && entry.referenced) {
+                        entry.referenced = false;
+                        hand = (hand + 1) % capacity;
+                        continue;
+                    }
+                    entries.remove(candidate);
+                }
+                clock[hand] = key;
+                hand = (hand + 1) % capacity;
+                return;
+            }
+        }
+    }
+
+    private static final class Entry {
+        final byte[]  suffix;
+        /** Set by hits, cleared by the clock hand; racy on purpose, a lost update only costs a second chance. */
+        boolean       referenced;
+
+        Entry(byte[] suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    static final class Key {
+        private static final String[] NO_TAGS = new String[0];
+
+        String[] tags;
+        int      hash;
+
+        Key reset(String[] tags) {
+            this.tags = tags == null ? NO_TAGS : tags;
+            this.hash = Arrays.hashCode(this.tags);
+            return this;
+        }
+
+        Key copy() {
+            return new Key().reset(tags.length == 0 ? NO_TAGS : tags.clone());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(tags, other.tags);
+        }
+    }
+}
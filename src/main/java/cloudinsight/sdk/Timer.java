@@ -0,0 +1,116 @@
+package cloudinsight.sdk;
+
+import java.util.Arrays;
+
+/**
+ * A timer bound to one aspect and tag set, created by {@link CloudInsightStatsDClient#timer(String, String...)}.
+ * <p>
+ * Besides whole milliseconds, it records {@link System#nanoTime()} durations as fractional milliseconds, so calls
+ * well under a millisecond do not all show up as 0, either directly through {@link #recordNanos(long)} or with a
+ * {@link #start()} scope:
+ *
+ * <pre>
+ * try (Timer.Scope scope = timer.start()) {
+ *     handle(request);
+ * }
+ * </pre>
+ */
+public final class Timer extends MetricHandle {
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    /** One stack of open measurements per thread, whichever timers they belong to. */
+    private static final ThreadLocal<Scope> SCOPES = new ThreadLocal<Scope>() {
+        @Override
+        protected Scope initialValue() {
+            return new Scope();
+        }
+    };
+
+    private final Aggregator.SketchCell cell;
+
+    Timer(CloudInsightStatsDClient client, String aspect, String[] tags) {
+        super(client, MetricType.TIMER, aspect, tags);
+        this.cell = aggregator == null ? null : aggregator.sketchCell(MetricType.TIMER, aspect, tags, true);
+    }
+
+    public void record(long timeInMs) {
+        if (sampledOut()) {
+            return;
+        }
+        if (cell != null) {
+            cell.record(timeInMs);
+        } else {
+            send(timeInMs);
+        }
+    }
+
+    /**
+     * Records a duration measured with {@link System#nanoTime()}, sent in milliseconds with up to six decimals.
+     */
+    public void recordNanos(long nanos) {
+        if (sampledOut()) {
+            return;
+        }
+        double timeInMs = nanos / NANOS_PER_MILLI;
+        if (cell != null) {
+            cell.record(timeInMs);
+        } else {
+            send(timeInMs);
+        }
+    }
+
+    /**
+     * Starts timing on the calling thread; closing the returned scope records the elapsed time. The scope object
+     * is the calling thread's own and is shared by every timer, so timing allocates nothing once a thread has
+     * timed something, and scopes may nest. A scope must be closed on the thread that started it, innermost first.
+     */
+    public Scope start() {
+        return SCOPES.get().push(this, System.nanoTime());
+    }
+
+    /**
+     * The running measurements of one thread, see {@link Timer#start()}. Each records which timer it belongs to.
+     */
+    public static final class Scope implements AutoCloseable {
+        private Timer[] timers = new Timer[4];
+        private long[]  starts = new long[4];
+        private int     depth;
+
+        private Scope() {
+        }
+
+        private Scope push(Timer timer, long start) {
+            if (depth == starts.length) {
+                timers = Arrays.copyOf(timers, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+            }
+            timers[depth] = timer;
+            starts[depth++] = start;
+            return this;
+        }
+
+        /**
+         * @return nanoseconds since the innermost open measurement started
+         */
+        public long elapsedNanos() {
+            return System.nanoTime() - starts[depth - 1];
+        }
+
+        /**
+         * Records the time since the innermost open measurement started with the timer that started it. Closing a
+         * scope with nothing open does nothing.
+         */
+        @Override
+        public void close() {
+            if (depth == 0) {
+                return;
+            }
+            long elapsed = System.nanoTime() - starts[--depth];
+            Timer timer = timers[depth];
+            // a closed frame must not keep a timer the application dropped reachable
+            timers[depth] = null;
+            timer.recordNanos(elapsed);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package cloudinsight.sdk;
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Carries packets from a sender thread of {@link CloudInsightStatsDClient} to the agent. Every sender thread opens
+ * its own transport and is the only thread sending through it.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * @return the largest packet {@link #send(ByteBuffer)} accepts, in bytes
+     */
+    int maxPacketSize();
+
+    /**
+     * Sends the remaining bytes of {@code packet} as one datagram. Implementations should block while the socket
+     * has no room rather than discard the packet, so that a slow agent backs up into the client queue.
+     *
+     * @return the number of bytes sent
+     */
+    int send(ByteBuffer packet) throws IOException;
+
+    /**
+     * Asks whether the agent takes packets again, while the client spills them to disk after a failed send. Called
+     * at most every few hundred milliseconds. Transports that cannot tell return true, and the next failed send
+     * resumes spilling.
+     */
+    default boolean reachable() throws IOException {
+        return true;
+    }
+
+    /**
+     * Opens one transport per sender thread.
+     */
+    interface Factory {
+        Transport open() throws IOException;
+    }
+
+}
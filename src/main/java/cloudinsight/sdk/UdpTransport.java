@@ -0,0 +1,125 @@
+package cloudinsight.sdk;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * The default transport: UDP datagrams, by default of at most one Ethernet MTU.
+ * <p>
+ * A connected transport connects its channel to the agent, so the ICMP port-unreachable errors of a stopped agent
+ * fail the next send with a {@link PortUnreachableException} instead of going unnoticed, and probes with empty
+ * datagrams on a second channel to tell when the agent is back. The client connects its transports when it spills
+ * to disk.
+ */
+final class UdpTransport implements Transport {
+
+    static final int                DEFAULT_MAX_PACKET_SIZE = 1500;
+
+    /** The largest UDP payload over IPv4: 65535 bytes less the IP and UDP headers. */
+    static final int                MAX_PACKET_SIZE         = 65507;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final DatagramChannel   channel;
+    private final AddressResolver   address;
+    private final int               maxPacketSize;
+    private final boolean           connected;
+    private InetSocketAddress       connectedTo;
+    private DatagramChannel         probe;
+    private InetSocketAddress       probedAddress;
+    private boolean                 probeSent;
+
+    UdpTransport(AddressResolver address, int maxPacketSize) throws IOException {
+        this(address, maxPacketSize, false);
+    }
+
+    UdpTransport(AddressResolver address, int maxPacketSize, boolean connected) throws IOException {
+        this.channel = DatagramChannel.open();
+        this.address = address;
+        this.maxPacketSize = maxPacketSize;
+        this.connected = connected;
+    }
+
+    static Transport.Factory factory(final AddressResolver address, final int maxPacketSize) {
+        return factory(address, maxPacketSize, false);
+    }
+
+    static Transport.Factory factory(final AddressResolver address, final int maxPacketSize, final boolean connected) {
+        return new Transport.Factory() {
+            public Transport open() throws IOException {
+                return new UdpTransport(address, maxPacketSize, connected);
+            }
+        };
+    }
+
+    public int maxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public int send(ByteBuffer packet) throws IOException {
+        if (!connected) {
+            return channel.send(packet, address.address());
+        }
+        InetSocketAddress target = address.address();
+        if (!target.equals(connectedTo)) {
+            if (channel.isConnected()) {
+                channel.disconnect();
+            }
+            channel.connect(target);
+            connectedTo = target;
+        }
+        return channel.write(packet);
+    }
+
+    /**
+     * Sends an empty datagram and reports whether the one sent by the previous call drew an ICMP error, so the
+     * first call after an outage began always answers false.
+     */
+    @Override
+    public boolean reachable() throws IOException {
+        InetSocketAddress target = address.address();
+        if (probe == null || !target.equals(probedAddress)) {
+            if (probe != null) {
+                probe.close();
+            }
+            probe = DatagramChannel.open();
+            probe.configureBlocking(false);
+            probe.connect(target);
+            probedAddress = target;
+            probeSent = false;
+        }
+        boolean answered = probeSent;
+        try {
+            // a pending ICMP error fails the read
+            probe.read(ByteBuffer.allocate(1));
+        } catch (PortUnreachableException e) {
+            answered = false;
+        }
+        try {
+            probe.write(EMPTY.duplicate());
+            probeSent = true;
+        } catch (PortUnreachableException e) {
+            probeSent = false;
+            answered = false;
+        }
+        return answered;
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (probe != null) {
+                probe.close();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("host %s:%d", address.hostname(), address.port());
+    }
+}
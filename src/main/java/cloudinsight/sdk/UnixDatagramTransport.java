@@ -0,0 +1,64 @@
+package cloudinsight.sdk;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+
+/**
+ * Datagrams over a Unix domain socket, for an agent on the same host. This skips the UDP/IP stack, allows packets
+ * far bigger than an MTU, and the kernel never drops a datagram for lack of room: a send blocks until the agent has
+ * read enough, so a slow agent backs up into the client queue and its overflow policy instead.
+ * <p>
+ * The JDK only supports stream Unix sockets, and only from Java 16, so this needs the optional
+ * {@code com.github.jnr:jnr-unixsocket} dependency on the class path.
+ */
+final class UnixDatagramTransport implements Transport {
+
+    static final int                  DEFAULT_MAX_PACKET_SIZE = 8192;
+
+    private final UnixDatagramChannel channel;
+    private final UnixSocketAddress   address;
+    private final int                 maxPacketSize;
+
+    UnixDatagramTransport(String path, int maxPacketSize) throws IOException {
+        this.address = new UnixSocketAddress(new File(path));
+        this.maxPacketSize = maxPacketSize;
+        this.channel = UnixDatagramChannel.open();
+    }
+
+    static Transport.Factory factory(final String path, final int maxPacketSize) {
+        return new Transport.Factory() {
+            public Transport open() throws IOException {
+                try {
+                    return new UnixDatagramTransport(path, maxPacketSize);
+                } catch (NoClassDefFoundError e) {
+                    throw new IOException("Unix domain sockets need com.github.jnr:jnr-unixsocket on the class path", e);
+                }
+            }
+        };
+    }
+
+    public int maxPacketSize() {
+        return maxPacketSize;
+    }
+
+    /**
+     * Not connected up front, so the client can start before the agent creates its socket; until then every
+     * send fails and goes to the error handler.
+     */
+    public int send(ByteBuffer packet) throws IOException {
+        return channel.send(packet, address);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String toString() {
+        return "socket " + address.path();
+    }
+}
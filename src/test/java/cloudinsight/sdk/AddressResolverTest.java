@@ -0,0 +1,52 @@
+package cloudinsight.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+import org.junit.Test;
+
+public class AddressResolverTest {
+
+    private final ClientTelemetry telemetry = new ClientTelemetry(new RingBuffer<?>[0]);
+
+    @Test
+    public void resolves_once_at_start() {
+        AddressResolver resolver = new AddressResolver("localhost", 8251, telemetry);
+
+        InetSocketAddress address = resolver.address();
+        assertFalse(address.isUnresolved());
+        assertTrue(address.getAddress().isLoopbackAddress());
+        assertEquals(8251, address.getPort());
+        assertEquals(1, telemetry.getResolutions());
+        assertTrue(telemetry.getAverageResolveNanos() > 0);
+    }
+
+    @Test
+    public void keeps_address_instance_when_unchanged() throws Exception {
+        AddressResolver resolver = new AddressResolver("localhost", 8251, telemetry);
+        InetSocketAddress address = resolver.address();
+
+        assertFalse(resolver.refresh());
+        assertSame(address, resolver.address());
+        assertEquals(2, telemetry.getResolutions());
+    }
+
+    @Test
+    public void keeps_previous_address_when_lookup_fails() {
+        AddressResolver resolver = new AddressResolver("agent.invalid", 8251, telemetry);
+        InetSocketAddress address = resolver.address();
+        assertTrue(address.isUnresolved());
+
+        try {
+            resolver.refresh();
+        } catch (UnknownHostException expected) {
+        }
+        assertSame(address, resolver.address());
+        assertEquals(2, telemetry.getResolutionFailures());
+    }
+}
@@ -0,0 +1,227 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class AggregatorTest {
+
+    private final Aggregator     aggregator = new Aggregator(true, false);
+    private final RecordingSink  sink       = new RecordingSink();
+
+    private static final class RecordingSink implements Aggregator.Sink {
+        final List<String> lines = new ArrayList<String>();
+
+        public synchronized void send(String aspect, long value, MetricType type, String[] tags) {
+            lines.add(aspect + ":" + value + "|" + type + Arrays.toString(tags));
+        }
+
+        public synchronized void send(String aspect, double value, MetricType type, String[] tags) {
+            lines.add(aspect + ":" + value + "|" + type + Arrays.toString(tags));
+        }
+    }
+
+    @Test
+    public void sums_counters_per_aspect_and_tags() {
+        aggregator.record(MetricType.COUNTER, "requests", 1, new String[] {"a:1"});
+        aggregator.record(MetricType.COUNTER, "requests", 2, new String[] {"a:1"});
+        aggregator.record(MetricType.COUNTER, "requests", 5, new String[] {"a:2"});
+        aggregator.record(MetricType.COUNTER, "requests", -1, null);
+        aggregator.flush(sink);
+
+        assertThat(sink.lines, containsInAnyOrder("requests:3|COUNTER[a:1]", "requests:5|COUNTER[a:2]", "requests:-1|COUNTER[]"));
+    }
+
+    @Test
+    public void keeps_last_gauge_value() {
+        aggregator.record(MetricType.GAUGE, "heap", 10L, null);
+        aggregator.record(MetricType.GAUGE, "heap", 20L, null);
+        aggregator.record(MetricType.GAUGE, "load", 0.5, null);
+        aggregator.record(MetricType.GAUGE, "load", 0.75, null);
+        aggregator.flush(sink);
+
+        assertThat(sink.lines, containsInAnyOrder("heap:20|GAUGE[]", "load:0.75|GAUGE[]"));
+    }
+
+    @Test
+    public void only_flushes_changed_series() {
+        aggregator.record(MetricType.COUNTER, "requests", 1, null);
+        aggregator.flush(sink);
+        sink.lines.clear();
+        aggregator.flush(sink);
+        assertThat(sink.lines, empty());
+
+        aggregator.record(MetricType.COUNTER, "requests", 4, null);
+        aggregator.flush(sink);
+        assertThat(sink.lines, contains("requests:4|COUNTER[]"));
+    }
+
+    @Test
+    public void summarises_timers_and_histograms_when_enabled() {
+        Aggregator summarising = new Aggregator(false, true);
+        assertFalse(summarising.record(MetricType.COUNTER, "requests", 1, null));
+        for (int i = 1; i <= 100; i++) {
+            summarising.record(MetricType.TIMER, "latency", (long) i, new String[] {"db"});
+        }
+        summarising.flush(sink);
+
+        assertThat(sink.lines, containsInAnyOrder("latency.count:100|COUNTER[db]", "latency.min:1.0|GAUGE[db]",
+                "latency.max:100.0|GAUGE[db]", "latency.avg:50.5|GAUGE[db]", "latency.p50:50.25|GAUGE[db]",
+                "latency.p95:95.5|GAUGE[db]", "latency.p99:99.5|GAUGE[db]"));
+        sink.lines.clear();
+        summarising.flush(sink);
+        assertThat(sink.lines, empty());
+    }
+
+    @Test
+    public void leaves_timers_and_histograms_alone() {
+        assertFalse(aggregator.record(MetricType.TIMER, "latency", 1, null));
+        assertFalse(aggregator.record(MetricType.HISTOGRAM, "size", 1, null));
+        assertFalse(aggregator.record(MetricType.HISTOGRAM, "size", 1.5, null));
+    }
+
+    @Test
+    public void copies_tags_of_new_series() {
+        String[] tags = new String[] {"a:1"};
+        aggregator.record(MetricType.COUNTER, "requests", 1, tags);
+        tags[0] = "a:2";
+        aggregator.record(MetricType.COUNTER, "requests", 1, new String[] {"a:1"});
+        aggregator.flush(sink);
+
+        assertThat(sink.lines, contains("requests:2|COUNTER[a:1]"));
+    }
+
+    @Test
+    public void passes_each_set_value_once_until_flush() {
+        Aggregator sets = new Aggregator(false, false, true);
+
+        assertFalse(sets.record(MetricType.SET, "users", 7L, null));
+        assertTrue(sets.record(MetricType.SET, "users", 7L, null));
+        assertFalse(sets.recordSetValue("users", "alice", null));
+        assertTrue(sets.recordSetValue("users", "alice", null));
+        assertFalse(sets.recordSetValue("users", "alice", new String[] {"region:eu"}));
+        sets.flush(sink);
+
+        assertThat(sink.lines, empty());
+        assertFalse(sets.recordSetValue("users", "alice", null));
+    }
+
+    @Test
+    public void passes_set_values_beyond_the_limit_through() {
+        Aggregator sets = new Aggregator(false, false, true);
+        for (long i = 0; i < Aggregator.MAX_SET_VALUES; i++) {
+            assertFalse(sets.record(MetricType.SET, "users", i, null));
+        }
+
+        assertFalse(sets.recordSetValue("users", "alice", null));
+        assertFalse(sets.recordSetValue("users", "alice", null));
+        assertTrue(sets.record(MetricType.SET, "users", 0L, null));
+        assertTrue(sets.record(MetricType.SET, "users", Aggregator.MAX_SET_VALUES - 1L, null));
+        sets.flush(sink);
+
+        assertFalse(sets.recordSetValue("users", "alice", null));
+        assertTrue(sets.recordSetValue("users", "alice", null));
+    }
+
+    @Test(timeout = 20000L)
+    public void sums_concurrent_increments_exactly() throws Exception {
+        final int threads = 8;
+        final int perThread = 100000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        aggregator.record(MetricType.COUNTER, "requests", 1, new String[] {"shared"});
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(15, TimeUnit.SECONDS);
+        aggregator.flush(sink);
+
+        assertThat(sink.lines, contains("requests:" + (threads * perThread) + "|COUNTER[shared]"));
+    }
+
+    @Test
+    public void keys_series_by_tag_set() {
+        aggregator.record(MetricType.COUNTER, "requests", 1, new String[] {"b:2", "a:1"});
+        aggregator.record(MetricType.COUNTER, "requests", 2, new String[] {"a:1", "b:2"});
+        aggregator.record(MetricType.COUNTER, "requests", 4, new String[] {"a:1", "b:2", "a:1"});
+        aggregator.flush(sink);
+
+        assertThat(sink.lines, contains("requests:7|COUNTER[a:1, b:2]"));
+    }
+
+    @Test
+    public void drops_idle_series_but_not_handle_cells() {
+        aggregator.record(MetricType.COUNTER, "requests", 1, null);
+        Aggregator.CounterCell pinned = aggregator.counterCell("pinned", null, true);
+        for (int i = 0; i <= Aggregator.IDLE_FLUSHES_BEFORE_EVICTION; i++) {
+            aggregator.flush(sink);
+        }
+        assertEquals(1, aggregator.size());
+
+        pinned.add(3);
+        aggregator.flush(sink);
+        assertThat(sink.lines, contains("requests:1|COUNTER[]", "pinned:3|COUNTER[]"));
+    }
+
+    @Test
+    public void passes_series_beyond_the_limit_through() {
+        Aggregator bounded = new Aggregator(true, false, false, 2);
+
+        assertTrue(bounded.record(MetricType.COUNTER, "requests", 1, new String[] {"a:1"}));
+        assertTrue(bounded.record(MetricType.COUNTER, "requests", 1, new String[] {"a:2"}));
+        assertFalse(bounded.record(MetricType.COUNTER, "requests", 1, new String[] {"a:3"}));
+        assertTrue(bounded.record(MetricType.COUNTER, "requests", 1, new String[] {"a:1"}));
+        assertEquals(2, bounded.size());
+    }
+
+    @Test(timeout = 20000L)
+    public void keeps_increments_that_race_a_flush() throws Exception {
+        final int threads = 4;
+        final int perThread = 200000;
+        final AtomicLong flushed = new AtomicLong();
+        Aggregator.Sink summing = new Aggregator.Sink() {
+            public void send(String aspect, long value, MetricType type, String[] tags) {
+                flushed.addAndGet(value);
+            }
+
+            public void send(String aspect, double value, MetricType type, String[] tags) {
+            }
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        aggregator.record(MetricType.COUNTER, "requests", 1, null);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MILLISECONDS)) {
+            aggregator.flush(summing);
+        }
+        aggregator.flush(summing);
+
+        assertEquals(threads * perThread, flushed.get());
+    }
+}
@@ -0,0 +1,84 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+public class CardinalityLimiterTest {
+
+    private final List<Exception>          errors  = new CopyOnWriteArrayList<Exception>();
+    private final StatsDClientErrorHandler handler = new StatsDClientErrorHandler() {
+        public void handle(Exception exception) {
+            errors.add(exception);
+        }
+    };
+
+    @Test
+    public void admits_known_tag_sets_past_the_limit() {
+        CardinalityLimiter limiter = new CardinalityLimiter(2, CardinalityPolicy.DROP, handler);
+        String[] first = {"id:1"};
+        String[] second = {"id:2"};
+
+        assertThat(limiter.admit("requests", first), sameInstance(first));
+        assertThat(limiter.admit("requests", second), sameInstance(second));
+        assertThat(limiter.admit("requests", new String[] {"id:3"}), nullValue());
+        assertThat(limiter.admit("requests", new String[] {"id:1"}), is(new String[] {"id:1"}));
+        assertThat(limiter.admit("latency", new String[] {"id:3"}), is(new String[] {"id:3"}));
+        assertThat(limiter.limitedMetrics(), contains("requests"));
+    }
+
+    @Test
+    public void collapses_new_tag_sets_and_reports_metric_once() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1, CardinalityPolicy.COLLAPSE, handler);
+        limiter.admit("requests", null);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.admit("requests", new String[] {"id:" + i}), sameInstance(CardinalityLimiter.OVERFLOW_TAGS));
+        }
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0).getMessage(), is("Metric requests reached 1 tag sets, collapsing new ones"));
+    }
+
+    @Test
+    public void reports_nothing_under_the_limit() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1000, CardinalityPolicy.DROP, handler);
+        for (int i = 0; i < 1000; i++) {
+            limiter.admit("requests", new String[] {"id:" + i, "region:eu"});
+        }
+
+        assertThat(errors, empty());
+        assertThat(limiter.limitedMetrics(), empty());
+    }
+
+    @Test
+    public void counts_a_tag_set_once_whatever_the_tag_order() {
+        CardinalityLimiter limiter = new CardinalityLimiter(1, CardinalityPolicy.DROP, handler);
+
+        assertThat(limiter.admit("requests", new String[] {"a:1", "b:2"}), is(new String[] {"a:1", "b:2"}));
+        assertThat(limiter.admit("requests", new String[] {"b:2", "a:1"}), is(new String[] {"b:2", "a:1"}));
+        assertThat(limiter.admit("requests", new String[] {"b:2", "a:1", "a:1"}), is(new String[] {"b:2", "a:1", "a:1"}));
+        assertThat(errors, empty());
+    }
+
+    @Test
+    public void limits_the_number_of_tracked_metrics() {
+        CardinalityLimiter limiter = new CardinalityLimiter(10, 2, CardinalityPolicy.COLLAPSE, handler);
+        limiter.admit("first", null);
+        limiter.admit("second", null);
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(limiter.admit("third." + i, new String[] {"id:1"}), sameInstance(CardinalityLimiter.OVERFLOW_TAGS));
+        }
+        assertThat(limiter.admit("first", new String[] {"id:1"}), is(new String[] {"id:1"}));
+        assertThat(errors.size(), is(1));
+        assertThat(errors.get(0).getMessage(), is("Cardinality limiter tracks 2 metrics already, collapsing the tag sets of new ones"));
+    }
+}
@@ -2,6 +2,9 @@ package cloudinsight.sdk;
 
 
 import java.net.SocketException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -10,12 +13,20 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.anyOf;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertEquals;
 
 public final class CloudInsightStatsDClientPerfTest {
 
 
     private static final int              STATSD_SERVER_PORT = 17255;
+    private static final int              TEST_SIZE          = 10000;
     private static final Random           RAND               = new Random();
     private final CloudInsightStatsDClient client             = new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT);
     private final ExecutorService         executor           = Executors.newFixedThreadPool(20);
@@ -32,14 +43,15 @@ public final class CloudInsightStatsDClientPerfTest {
         server.close();
     }
 
-    @Test(timeout = 30000)
-    public void perf_test() throws Exception {
-
-        int testSize = 10000;
-        for (int i = 0; i < testSize; ++i) {
+    /**
+     * Counts {@link #TEST_SIZE} lines from the executor threads, over {@code metrics} aspects, and waits until the
+     * server received every one of them.
+     */
+    private void countConcurrently(final CloudInsightStatsDClient client, final int metrics, final String... tags) throws Exception {
+        for (int i = 0; i < TEST_SIZE; ++i) {
             executor.submit(new Runnable() {
                 public void run() {
-                    client.count("mycount", RAND.nextInt());
+                    client.count(metrics == 1 ? "mycount" : "mycount" + RAND.nextInt(metrics), RAND.nextInt(), tags);
                 }
             });
 
@@ -47,14 +59,54 @@ public final class CloudInsightStatsDClientPerfTest {
 
         executor.shutdown();
         executor.awaitTermination(20, TimeUnit.SECONDS);
+        server.awaitMessages(TEST_SIZE);
+
+        assertEquals(TEST_SIZE, server.messagesReceived().size());
+    }
+
+    @Test(timeout = 30000)
+    public void perf_test() throws Exception {
+        countConcurrently(client, 1);
+    }
+
+    @Test(timeout = 30000)
+    public void perf_test_with_sharded_senders() throws Exception {
+        CloudInsightStatsDClient shardedClient = CloudInsightStatsDClient.builder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .senderThreads(4)
+                .shardingStrategy(ShardingStrategy.BY_METRIC)
+                .build();
+        try {
+            countConcurrently(shardedClient, 16);
 
-        for (int i = 0; i < 20000 && server.messagesReceived().size() < testSize; i += 50) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException ex) {
+            assertThat(server.packetSizes().size(), is(lessThan(TEST_SIZE)));
+            // every shard sends through its own channel, and each metric stays on one shard
+            Map<Integer, List<String>> bySender = server.messagesBySender();
+            assertThat(bySender.size(), is(4));
+            Map<String, Integer> senderOfMetric = new HashMap<String, Integer>();
+            for (Map.Entry<Integer, List<String>> sender : bySender.entrySet()) {
+                for (String line : sender.getValue()) {
+                    Integer previous = senderOfMetric.put(line.substring(0, line.indexOf(':')), sender.getKey());
+                    assertThat(previous, is(anyOf(nullValue(), equalTo(sender.getKey()))));
+                }
             }
+        } finally {
+            shardedClient.stop();
         }
+    }
+
+    @Test(timeout = 30000)
+    public void perf_test_with_deferred_encoding() throws Exception {
+        CloudInsightStatsDClient deferredClient = CloudInsightStatsDClient.builder()
+                .prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT)
+                .deferredEncoding(true)
+                .build();
+        try {
+            countConcurrently(deferredClient, 1, "foo:bar");
 
-        assertEquals(testSize, server.messagesReceived().size());
+            assertThat(server.messagesReceived().get(0), endsWith("|c|#foo:bar"));
+        } finally {
+            deferredClient.stop();
+        }
     }
 }
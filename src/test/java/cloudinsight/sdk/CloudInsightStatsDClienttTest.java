@@ -2,20 +2,56 @@ package cloudinsight.sdk;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
-
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.everyItem;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasItems;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.UnresolvedAddressException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class CloudInsightStatsDClienttTest {
 
     private static final int               STATSD_SERVER_PORT = 17254;
     private final CloudInsightStatsDClient client             = new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT);
+    /** Clients a test built on top of {@link #client}, stopped after it even if it fails. */
+    private final List<CloudInsightStatsDClient> clients = new CopyOnWriteArrayList<CloudInsightStatsDClient>();
     private DummyStatsDServer              server;
 
+    @Rule
+    public final TemporaryFolder           folder             = new TemporaryFolder();
+
     @Before
     public void start() throws SocketException {
         server = new DummyStatsDServer(STATSD_SERVER_PORT);
@@ -23,10 +59,25 @@ public class CloudInsightStatsDClienttTest {
 
     @After
     public void stop() throws Exception {
+        for (CloudInsightStatsDClient built : clients) {
+            built.stop();
+        }
         client.stop();
         server.close();
     }
 
+    /**
+     * @return a builder for a client that sends to the test server under the prefix of {@link #client}
+     */
+    private static CloudInsightStatsDClient.Builder clientBuilder() {
+        return CloudInsightStatsDClient.builder().prefix("my.prefix").hostname("localhost").port(STATSD_SERVER_PORT);
+    }
+
+    private CloudInsightStatsDClient stopsAfterTest(CloudInsightStatsDClient built) {
+        clients.add(built);
+        return built;
+    }
+
     @Test(timeout = 5000L)
     public void sends_counter_value_to_statsd() throws Exception {
 
@@ -259,7 +310,7 @@ public class CloudInsightStatsDClienttTest {
     @Test(timeout = 5000L)
     public void sends_gauge_mixed_tags() throws Exception {
 
-        final CloudInsightStatsDClient empty_prefix_client = new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"});
+        final CloudInsightStatsDClient empty_prefix_client = stopsAfterTest(new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"}));
         empty_prefix_client.gauge("value", 423, "baz");
         server.waitForMessage();
 
@@ -269,7 +320,7 @@ public class CloudInsightStatsDClienttTest {
     @Test(timeout = 5000L)
     public void sends_gauge_constant_tags_only() throws Exception {
 
-        final CloudInsightStatsDClient empty_prefix_client = new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"});
+        final CloudInsightStatsDClient empty_prefix_client = stopsAfterTest(new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"}));
         empty_prefix_client.gauge("value", 423);
         server.waitForMessage();
 
@@ -279,7 +330,7 @@ public class CloudInsightStatsDClienttTest {
     @Test(timeout = 5000L)
     public void sends_gauge_empty_prefix() throws Exception {
 
-        final CloudInsightStatsDClient empty_prefix_client = new CloudInsightStatsDClient("", "localhost", STATSD_SERVER_PORT);
+        final CloudInsightStatsDClient empty_prefix_client = stopsAfterTest(new CloudInsightStatsDClient("", "localhost", STATSD_SERVER_PORT));
         empty_prefix_client.gauge("top.level.value", 423);
         server.waitForMessage();
 
@@ -289,7 +340,7 @@ public class CloudInsightStatsDClienttTest {
     @Test(timeout = 5000L)
     public void sends_gauge_null_prefix() throws Exception {
 
-        final CloudInsightStatsDClient null_prefix_client = new CloudInsightStatsDClient(null, "localhost", STATSD_SERVER_PORT);
+        final CloudInsightStatsDClient null_prefix_client = stopsAfterTest(new CloudInsightStatsDClient(null, "localhost", STATSD_SERVER_PORT));
         null_prefix_client.gauge("top.level.value", 423);
         server.waitForMessage();
 
@@ -304,4 +355,720 @@ public class CloudInsightStatsDClienttTest {
 
         assertThat(server.messagesReceived(), contains("my.prefix.mygauge:NaN|g"));
     }
+
+    @Test(timeout = 10000L)
+    public void counts_messages_dropped_by_full_queue() throws Exception {
+        final AtomicInteger reportedDrops = new AtomicInteger();
+        final CloudInsightStatsDClient bounded_client = stopsAfterTest(clientBuilder()
+                .queueCapacity(2)
+                .overflowPolicy(OverflowPolicy.DROP_NEWEST)
+                .errorHandler(new StatsDClientErrorHandler() {
+                    public void handle(Exception exception) {
+                        if (exception instanceof StatsDClientException) {
+                            reportedDrops.incrementAndGet();
+                        }
+                    }
+                })
+                .build());
+        int sent = 20000;
+        for (int i = 0; i < sent; i++) {
+            bounded_client.increment("mycount");
+        }
+        long dropped = bounded_client.getDroppedMessages();
+        server.awaitMessages((int) (sent - dropped));
+        bounded_client.stop();
+
+        assertEquals(sent, server.messagesReceived().size() + dropped);
+        assertTrue(dropped == 0 || reportedDrops.get() > 0);
+    }
+
+    @Test(timeout = 10000L)
+    public void keeps_newest_messages_when_dropping_oldest() throws Exception {
+        final CloudInsightStatsDClient bounded_client = stopsAfterTest(clientBuilder()
+                .queueCapacity(4)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .build());
+        int sent = 20000;
+        for (int i = 0; i < sent; i++) {
+            bounded_client.count("mycount", i);
+        }
+        server.awaitMessage("my.prefix.mycount:" + (sent - 1) + "|c");
+        bounded_client.stop();
+
+        assertEquals(sent, server.messagesReceived().size() + bounded_client.getDroppedMessages());
+    }
+
+    @Test(timeout = 10000L)
+    public void packs_lines_up_to_max_packet_size() throws Exception {
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        final CloudInsightStatsDClient small_packet_client = stopsAfterTest(clientBuilder()
+                .maxPacketSize(64)
+                .errorHandler(new StatsDClientErrorHandler() {
+                    public void handle(Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .build());
+        int sent = 500;
+        for (int i = 0; i < sent; i++) {
+            small_packet_client.count("mycount", i);
+        }
+        small_packet_client.count("a.metric.name.that.does.not.fit.into.one.packet.of.sixty.four.bytes", 1);
+        server.awaitMessages(sent);
+        small_packet_client.stop();
+
+        assertEquals(sent, server.messagesReceived().size());
+        assertThat(server.packetSizes(), everyItem(lessThan(65)));
+        assertEquals(1, errors.size());
+    }
+
+    @Test(timeout = 5000L)
+    public void batches_lines_until_max_latency() throws Exception {
+        final CloudInsightStatsDClient batching_client = stopsAfterTest(clientBuilder()
+                .maxLatency(200, TimeUnit.MILLISECONDS)
+                .build());
+        int sent = 100;
+        for (int i = 0; i < sent; i++) {
+            batching_client.count("mycount", i);
+        }
+        server.awaitMessages(sent);
+        batching_client.stop();
+
+        assertEquals(sent, batching_client.getSentLines());
+        assertThat(batching_client.getSentPackets(), lessThan(5L));
+        assertThat(batching_client.getAverageLinesPerPacket(), greaterThan(20d));
+        assertThat(server.packetSizes().size(), lessThan(5));
+    }
+
+    @Test(timeout = 5000L)
+    public void tracks_client_telemetry() throws Exception {
+        final CloudInsightStatsDClient monitored_client = stopsAfterTest(clientBuilder()
+                .jmx(true)
+                .build());
+        int sent = 1000;
+        for (int i = 0; i < sent; i++) {
+            monitored_client.increment("mycount");
+        }
+        server.awaitMessages(sent);
+        ClientTelemetry telemetry = monitored_client.getTelemetry();
+        assertEquals(sent, telemetry.getLinesEnqueued());
+        assertEquals(sent, telemetry.getLinesSent());
+        assertEquals(0, telemetry.getLinesDropped());
+        assertEquals(0, telemetry.getSendErrors());
+        assertEquals(sent * "my.prefix.mycount:1|c\n".length() - telemetry.getPacketsSent(), telemetry.getBytesSent());
+        assertThat(telemetry.getQueueHighWaterMark(), greaterThan(0));
+        assertThat(telemetry.getAverageSendNanos(), greaterThan(0d));
+
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        Set<ObjectName> names = mbeans.queryNames(new ObjectName("cloudinsight.sdk:type=CloudInsightStatsDClient,*"), null);
+        assertEquals(1, names.size());
+        assertEquals((long) sent, mbeans.getAttribute(names.iterator().next(), "LinesSent"));
+        monitored_client.stop();
+        assertTrue(mbeans.queryNames(new ObjectName("cloudinsight.sdk:type=CloudInsightStatsDClient,*"), null).isEmpty());
+    }
+
+    @Test(timeout = 5000L)
+    public void reports_client_telemetry_through_itself() throws Exception {
+        final CloudInsightStatsDClient monitored_client = stopsAfterTest(clientBuilder()
+                .telemetryInterval(200, TimeUnit.MILLISECONDS)
+                .build());
+        monitored_client.increment("mycount");
+        server.awaitMessage("cloudinsight.client.lines_enqueued:1|c");
+        monitored_client.stop();
+
+        assertThat(server.messagesReceived(), hasItems("my.prefix.mycount:1|c", "cloudinsight.client.lines_dropped:0|c",
+                "cloudinsight.client.send_errors:0|c"));
+    }
+
+    @Test(timeout = 5000L)
+    public void encodes_on_sender_thread_in_deferred_mode() throws Exception {
+        final CloudInsightStatsDClient deferred_client = stopsAfterTest(clientBuilder()
+                .constantTags("instance:foo")
+                .deferredEncoding(true)
+                .build());
+        deferred_client.count("mycount", 24, "foo:bar", "baz");
+        deferred_client.gauge("mygauge", 0.423);
+        deferred_client.histogram("myhistogram", 423L, 0.999999);
+        deferred_client.timer("mytime", "foo:bar").record(7);
+        server.awaitMessages(4);
+        deferred_client.stop();
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.mycount:24|c|#instance:foo,baz,foo:bar",
+                "my.prefix.mygauge:0.423|g|#instance:foo",
+                "my.prefix.myhistogram:423|h|@0.999999|#instance:foo",
+                "my.prefix.mytime:7|ms|#instance:foo,foo:bar"));
+    }
+
+    @Test(timeout = 10000L)
+    public void keeps_newest_records_when_dropping_oldest_in_deferred_mode() throws Exception {
+        final CloudInsightStatsDClient bounded_client = stopsAfterTest(clientBuilder()
+                .queueCapacity(4)
+                .overflowPolicy(OverflowPolicy.DROP_OLDEST)
+                .deferredEncoding(true)
+                .build());
+        int sent = 20000;
+        for (int i = 0; i < sent; i++) {
+            bounded_client.count("mycount", i);
+        }
+        server.awaitMessage("my.prefix.mycount:" + (sent - 1) + "|c");
+        bounded_client.stop();
+
+        assertEquals(sent, server.messagesReceived().size() + bounded_client.getDroppedMessages());
+    }
+
+    @Test(timeout = 5000L)
+    public void flush_sends_partly_filled_packets() throws Exception {
+        final CloudInsightStatsDClient slow_client = stopsAfterTest(clientBuilder()
+                .maxLatency(1, TimeUnit.MINUTES)
+                .build());
+        slow_client.count("mycount", 24);
+        slow_client.gauge("mygauge", 0.5);
+        assertTrue(slow_client.flush(Duration.ofSeconds(2)));
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c", "my.prefix.mygauge:0.5|g"));
+    }
+
+    @Test(timeout = 5000L)
+    public void runs_senders_on_caller_executor() throws Exception {
+        final ExecutorService senders = Executors.newCachedThreadPool();
+        final CloudInsightStatsDClient pooled_client = stopsAfterTest(clientBuilder()
+                .senderExecutor(senders)
+                .senderThreads(2)
+                .maxLatency(1, TimeUnit.MINUTES)
+                .build());
+        pooled_client.count("mycount", 24);
+        pooled_client.flushAsync().get(2, TimeUnit.SECONDS);
+        server.awaitMessages(1);
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+        pooled_client.close(Duration.ofSeconds(2));
+        senders.shutdown();
+        assertTrue(senders.awaitTermination(2, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 5000L)
+    public void completes_flush_requested_after_close() throws Exception {
+        client.stop();
+        assertTrue(client.flushAsync().isDone());
+    }
+
+    @Test(timeout = 5000L)
+    public void discards_lines_sent_after_close() throws Exception {
+        client.stop();
+        client.count("mycount", 24);
+        client.gauge("mygauge", 1.5);
+
+        ClientTelemetry telemetry = client.getTelemetry();
+        assertEquals(2, telemetry.linesDiscarded.sum());
+        assertEquals(0, telemetry.linesInFlight());
+        assertThat(server.messagesReceived(), is(empty()));
+    }
+
+    @Test(timeout = 5000L)
+    public void runs_senders_on_virtual_threads_when_available() throws Exception {
+        final CloudInsightStatsDClient virtual_client;
+        try {
+            virtual_client = stopsAfterTest(clientBuilder()
+                    .virtualThreads(true)
+                    .build());
+        } catch (StatsDClientException e) {
+            assertThat(e.getMessage(), is("Virtual threads need Java 21 or later"));
+            return;
+        }
+        virtual_client.count("mycount", 24);
+        virtual_client.flushAsync().get(2, TimeUnit.SECONDS);
+        server.awaitMessages(1);
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+    }
+
+    @Test(timeout = 5000L)
+    public void facades_share_sender_with_own_prefix_and_tags() throws Exception {
+        final CloudInsightStatsDClient engine = stopsAfterTest(clientBuilder()
+                .constantTags("app:web")
+                .maxLatency(1, TimeUnit.MINUTES)
+                .deferredEncoding(true)
+                .build());
+        final CloudInsightStatsDClient orders = engine.facade("orders", "module:orders");
+        final CloudInsightStatsDClient billing = engine.facade("billing");
+        orders.count("placed", 1, "region:eu");
+        billing.gauge("balance", 7);
+        engine.count("requests", 2);
+        assertTrue(engine.flush(Duration.ofSeconds(2)));
+        server.awaitMessages(3);
+
+        assertThat(server.messagesReceived(), contains(
+                "orders.placed:1|c|#module:orders,region:eu",
+                "billing.balance:7|g",
+                "my.prefix.requests:2|c|#app:web"));
+        assertThat(server.packetSizes(), hasSize(1));
+        engine.close();
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_canonical_tags_when_enabled() throws Exception {
+        final CloudInsightStatsDClient canonical_client = stopsAfterTest(clientBuilder()
+                .constantTags("env:prod")
+                .canonicalTags(true)
+                .build());
+        canonical_client.count("mycount", 1, "b:2", "a:1");
+        canonical_client.count("mycount", 2, "a:1", "b:2", "a:1");
+        canonical_client.gauge("mygauge", 3);
+        server.awaitMessages(3);
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.mycount:1|c|#a:1,b:2,env:prod",
+                "my.prefix.mycount:2|c|#a:1,b:2,env:prod",
+                "my.prefix.mygauge:3|g|#env:prod"));
+    }
+
+    @Test(timeout = 5000L)
+    public void collapses_tag_sets_past_cardinality_limit() throws Exception {
+        final CloudInsightStatsDClient limited_client = stopsAfterTest(clientBuilder()
+                .cardinalityLimit(2, CardinalityPolicy.COLLAPSE)
+                .build());
+        for (int i = 0; i < 4; i++) {
+            limited_client.count("requests", 1, "request_id:" + i);
+        }
+        server.awaitMessages(4);
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.requests:1|c|#request_id:0",
+                "my.prefix.requests:1|c|#request_id:1",
+                "my.prefix.requests:1|c|#cardinality:overflow",
+                "my.prefix.requests:1|c|#cardinality:overflow"));
+        assertThat(limited_client.getCardinalityLimitedMetrics(), contains("requests"));
+        assertEquals(2, limited_client.getTelemetry().getLinesCardinalityLimited());
+    }
+
+    @Test(timeout = 10000L)
+    public void spills_while_agent_is_down_and_replays_when_back() throws Exception {
+        final int port = STATSD_SERVER_PORT + 2;
+        final CloudInsightStatsDClient spilling_client = stopsAfterTest(CloudInsightStatsDClient.builder()
+                .prefix("my.prefix").hostname("localhost").port(port)
+                .spillToDisk(folder.getRoot().getPath(), 64 * 1024)
+                .build());
+        // the first packet only draws the ICMP error that reveals the outage
+        spilling_client.count("lost", 1);
+        spilling_client.flush();
+        Thread.sleep(50L);
+        for (int i = 0; i < 10; i++) {
+            spilling_client.count("mycount", i);
+            spilling_client.flush();
+        }
+        assertEquals(10, spilling_client.getTelemetry().getPacketsSpilled());
+
+        final DummyStatsDServer agent = new DummyStatsDServer(port);
+        try {
+            agent.awaitMessages(10);
+            assertThat(agent.messagesReceived(), contains(
+                    "my.prefix.mycount:0|c", "my.prefix.mycount:1|c", "my.prefix.mycount:2|c", "my.prefix.mycount:3|c",
+                    "my.prefix.mycount:4|c", "my.prefix.mycount:5|c", "my.prefix.mycount:6|c", "my.prefix.mycount:7|c",
+                    "my.prefix.mycount:8|c", "my.prefix.mycount:9|c"));
+            assertEquals(10, spilling_client.getTelemetry().getPacketsReplayed());
+        } finally {
+            spilling_client.close();
+            agent.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_events_and_service_checks() throws Exception {
+        final CloudInsightStatsDClient tagged_client = stopsAfterTest(new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, "app:web"));
+        tagged_client.recordEvent(Event.builder()
+                .title("Deploy").text("v1.2\nrolled out")
+                .timestamp(1500000000L).priority(Event.Priority.LOW).alertType(Event.AlertType.SUCCESS)
+                .build(), "env:prod");
+        tagged_client.recordServiceCheck(ServiceCheck.builder()
+                .name("db.up").status(ServiceCheck.Status.CRITICAL).hostname("db1").message("timeout m:30s")
+                .build());
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived(), contains(
+                "_e{6,16}:Deploy|v1.2\\nrolled out|d:1500000000|p:low|t:success|#app:web,env:prod",
+                "_sc|db.up|2|h:db1|#app:web|m:timeout m\\:30s"));
+    }
+
+    @Test(timeout = 5000L)
+    public void truncates_event_text_to_fit_one_packet() throws Exception {
+        final CloudInsightStatsDClient small_client = stopsAfterTest(clientBuilder()
+                .maxPacketSize(64)
+                .build());
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("\u00e9");
+        }
+        small_client.recordEvent(Event.builder().title("Deploy").text(text.toString()).build());
+        small_client.count("mycount", 1);
+        server.awaitMessages(2);
+
+        String event = server.messagesReceived().get(0);
+        assertThat(event.startsWith("_e{6,46}:Deploy|\u00e9"), is(true));
+        assertThat(event.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET).length, is(62));
+        assertThat(server.messagesReceived().get(1), is("my.prefix.mycount:1|c"));
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_set_and_distribution_values() throws Exception {
+        client.set("users", "alice", "region:eu");
+        client.set("users", 42L);
+        client.distribution("latency", 0.25);
+        client.distribution("latency", 12L, 0.999999);
+        server.awaitMessages(4);
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.users:alice|s|#region:eu",
+                "my.prefix.users:42|s",
+                "my.prefix.latency:0.25|d",
+                "my.prefix.latency:12|d|@0.999999"));
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_each_set_value_once_per_flush_interval() throws Exception {
+        final CloudInsightStatsDClient unique_client = stopsAfterTest(clientBuilder()
+                .uniqueSets(true)
+                .flushInterval(1, TimeUnit.HOURS)
+                .build());
+        for (int i = 0; i < 100; i++) {
+            unique_client.set("users", "user" + (i % 3));
+        }
+        unique_client.flush();
+        unique_client.set("users", "user0");
+        server.awaitMessages(4);
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.users:user0|s", "my.prefix.users:user1|s", "my.prefix.users:user2|s", "my.prefix.users:user0|s"));
+    }
+
+    @Test(timeout = 5000L)
+    public void records_nano_durations_as_fractional_milliseconds() throws Exception {
+        client.recordExecutionTimeNanos("rpc", 125000L, "method:get");
+        client.timer("rpc").recordNanos(2500000L);
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived(), contains("my.prefix.rpc:0.125|ms|#method:get", "my.prefix.rpc:2.5|ms"));
+    }
+
+    @Test(timeout = 5000L)
+    public void reuses_nested_timer_scopes_per_thread() throws Exception {
+        final Timer timer = client.timer("rpc");
+        final Timer.Scope outer = timer.start();
+        final Timer.Scope inner = timer.start();
+        assertThat(inner, is(outer));
+        inner.close();
+        Thread.sleep(2L);
+        outer.close();
+        outer.close();
+        server.awaitMessages(2);
+        Thread.sleep(50L);
+
+        List<String> lines = server.messagesReceived();
+        assertThat(lines.size(), is(2));
+        double innerMs = Double.parseDouble(lines.get(0).substring("my.prefix.rpc:".length(), lines.get(0).indexOf('|')));
+        double outerMs = Double.parseDouble(lines.get(1).substring("my.prefix.rpc:".length(), lines.get(1).indexOf('|')));
+        assertThat(innerMs, lessThan(outerMs));
+        assertThat(outerMs, greaterThan(1.9));
+    }
+
+    @Test(timeout = 5000L)
+    public void shares_one_scope_stack_between_timers() throws Exception {
+        Timer.Scope outer = client.timer("outer").start();
+        Timer.Scope inner = client.timer("inner").start();
+        assertThat(inner, is(outer));
+        inner.close();
+        outer.close();
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived().get(0), startsWith("my.prefix.inner:"));
+        assertThat(server.messagesReceived().get(1), startsWith("my.prefix.outer:"));
+    }
+
+    @Test(timeout = 5000L)
+    public void close_drains_queue_before_stopping() throws Exception {
+        final CloudInsightStatsDClient slow_client = stopsAfterTest(clientBuilder()
+                .maxLatency(1, TimeUnit.MINUTES)
+                .deferredEncoding(true)
+                .build());
+        int sent = 1000;
+        for (int i = 0; i < sent; i++) {
+            slow_client.count("mycount", i);
+        }
+        slow_client.close(Duration.ofSeconds(2));
+        server.awaitMessages(sent);
+
+        assertEquals(sent, slow_client.getTelemetry().getLinesFlushedOnClose());
+        assertEquals(0, slow_client.getTelemetry().getLinesAbandoned());
+    }
+
+    @Test(timeout = 5000L)
+    public void close_reports_lines_abandoned_after_timeout() throws Exception {
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        final CloudInsightStatsDClient stuck_client = stopsAfterTest(CloudInsightStatsDClient.builder()
+                .transport(new Transport.Factory() {
+                    public Transport open() {
+                        return new Transport() {
+                            public int maxPacketSize() {
+                                return 64;
+                            }
+
+                            public int send(ByteBuffer packet) {
+                                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(20));
+                                int sent = packet.remaining();
+                                packet.position(packet.limit());
+                                return sent;
+                            }
+
+                            public void close() {
+                            }
+                        };
+                    }
+                })
+                .errorHandler(new StatsDClientErrorHandler() {
+                    public void handle(Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .build());
+        int sent = 1000;
+        for (int i = 0; i < sent; i++) {
+            stuck_client.count("mycount", i);
+        }
+        stuck_client.close(Duration.ofMillis(200));
+
+        ClientTelemetry telemetry = stuck_client.getTelemetry();
+        assertThat(telemetry.getLinesAbandoned(), greaterThan(0L));
+        assertThat(telemetry.getLinesAbandoned(), lessThan((long) sent));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage().contains("abandoned " + telemetry.getLinesAbandoned()));
+    }
+
+    @Test(timeout = 5000L)
+    public void recovers_from_unchecked_send_failures() throws Exception {
+        final List<String> packets = new CopyOnWriteArrayList<String>();
+        final List<Exception> errors = new CopyOnWriteArrayList<Exception>();
+        final CloudInsightStatsDClient failing_client = stopsAfterTest(CloudInsightStatsDClient.builder()
+                .transport(new Transport.Factory() {
+                    public Transport open() {
+                        return new Transport() {
+                            private boolean failed;
+
+                            public int maxPacketSize() {
+                                return 1432;
+                            }
+
+                            public int send(ByteBuffer packet) {
+                                if (!failed) {
+                                    failed = true;
+                                    throw new UnresolvedAddressException();
+                                }
+                                int sent = packet.remaining();
+                                byte[] bytes = new byte[sent];
+                                packet.get(bytes);
+                                packets.add(new String(bytes, CloudInsightStatsDClient.MESSAGE_CHARSET));
+                                return sent;
+                            }
+
+                            public void close() {
+                            }
+                        };
+                    }
+                })
+                .errorHandler(new StatsDClientErrorHandler() {
+                    public void handle(Exception exception) {
+                        errors.add(exception);
+                    }
+                })
+                .build());
+        failing_client.count("lost", 1);
+        failing_client.flushAsync().get(2, TimeUnit.SECONDS);
+        failing_client.count("mycount", 24);
+        failing_client.flushAsync().get(2, TimeUnit.SECONDS);
+
+        assertThat(packets, contains("mycount:24|c"));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof UnresolvedAddressException);
+        ClientTelemetry telemetry = failing_client.getTelemetry();
+        assertEquals(1, telemetry.getSendErrors());
+        assertEquals(1, telemetry.getPacketsSent());
+        assertEquals(1, telemetry.getLinesSent());
+        assertEquals(1, telemetry.linesDiscarded.sum());
+        assertEquals(0, telemetry.linesInFlight());
+    }
+
+    @Test(timeout = 5000L)
+    public void refreshes_agent_address_in_background() throws Exception {
+        final CloudInsightStatsDClient refreshing_client = stopsAfterTest(clientBuilder()
+                .addressRefreshInterval(20, TimeUnit.MILLISECONDS)
+                .build());
+        while (refreshing_client.getTelemetry().getResolutions() < 3) {
+            Thread.sleep(10L);
+        }
+        refreshing_client.count("mycount", 24);
+        server.waitForMessage();
+        refreshing_client.stop();
+
+        assertThat(server.messagesReceived(), contains("my.prefix.mycount:24|c"));
+        assertEquals(0, refreshing_client.getTelemetry().getResolutionFailures());
+    }
+
+    @Test(timeout = 5000L)
+    public void aggregates_counters_and_gauges_between_flushes() throws Exception {
+        final CloudInsightStatsDClient aggregating_client = stopsAfterTest(clientBuilder()
+                .aggregation(true)
+                .flushInterval(100, TimeUnit.MILLISECONDS)
+                .build());
+        for (int i = 0; i < 1000; i++) {
+            aggregating_client.increment("mycount", "foo:bar");
+            aggregating_client.gauge("mygauge", i);
+        }
+        aggregating_client.recordExecutionTime("mytime", 123);
+        server.awaitMessages(3);
+        aggregating_client.stop();
+
+        assertThat(server.messagesReceived(), containsInAnyOrder("my.prefix.mytime:123|ms", "my.prefix.mycount:1000|c|#foo:bar", "my.prefix.mygauge:999|g"));
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_sample_rate_with_sampled_counter() throws Exception {
+
+        client.count("mycount", 24, 0.999999, "foo:bar", "baz");
+        client.histogram("myhistogram", 0.423, 1);
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived(), containsInAnyOrder("my.prefix.mycount:24|c|@0.999999|#baz,foo:bar", "my.prefix.myhistogram:0.423|h"));
+    }
+
+    @Test(timeout = 10000L)
+    public void drops_calls_by_default_sample_rate() throws Exception {
+        final CloudInsightStatsDClient sampling_client = stopsAfterTest(clientBuilder()
+                .defaultSampleRate(MetricType.COUNTER, 0.5)
+                .build());
+        for (int i = 0; i < 2000; i++) {
+            sampling_client.increment("mycount");
+        }
+        sampling_client.recordExecutionTime("done", 1);
+        server.awaitMessage("my.prefix.done:1|ms");
+        sampling_client.stop();
+
+        List<String> counts = server.messagesReceived();
+        counts.remove("my.prefix.done:1|ms");
+        assertThat(counts, everyItem(is("my.prefix.mycount:1|c|@0.5")));
+        assertThat(counts.size(), greaterThan(700));
+        assertThat(counts.size(), lessThan(1300));
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_through_metric_handles() throws Exception {
+        final CloudInsightStatsDClient tagged_client = stopsAfterTest(new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, new String[] {"instance:foo", "app:bar"}));
+        Counter counter = tagged_client.counter("db.query", "table:users");
+        counter.increment();
+        counter.count(5);
+        tagged_client.gauge("pool.size").set(0.423);
+        tagged_client.timer("db.latency", "foo:bar", "baz").record(123);
+        tagged_client.histogram("payload").record(423L);
+        server.awaitMessages(5);
+        tagged_client.stop();
+
+        assertThat(server.messagesReceived(), contains(
+                "my.prefix.db.query:1|c|#app:bar,instance:foo,table:users",
+                "my.prefix.db.query:5|c|#app:bar,instance:foo,table:users",
+                "my.prefix.pool.size:0.423|g|#app:bar,instance:foo",
+                "my.prefix.db.latency:123|ms|#app:bar,instance:foo,baz,foo:bar",
+                "my.prefix.payload:423|h|#app:bar,instance:foo"));
+    }
+
+    @Test(timeout = 5000L)
+    public void aggregates_metric_handles() throws Exception {
+        final CloudInsightStatsDClient aggregating_client = stopsAfterTest(clientBuilder()
+                .aggregation(true)
+                .defaultSampleRate(MetricType.TIMER, 0.999999)
+                .flushInterval(100, TimeUnit.MILLISECONDS)
+                .build());
+        Counter counter = aggregating_client.counter("mycount", "foo:bar");
+        for (int i = 0; i < 1000; i++) {
+            counter.increment();
+            aggregating_client.increment("mycount", "foo:bar");
+        }
+        aggregating_client.timer("mytime").record(7);
+        server.awaitMessages(2);
+        aggregating_client.stop();
+
+        assertThat(server.messagesReceived(), containsInAnyOrder("my.prefix.mycount:2000|c|#foo:bar", "my.prefix.mytime:7|ms|@0.999999"));
+    }
+
+    @Test(timeout = 5000L)
+    public void configures_client_from_properties_before_environment() throws Exception {
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("cloudinsight.statsd.prefix", "from.properties");
+        properties.put("cloudinsight.statsd.max.latency.ms", "0");
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("CLOUDINSIGHT_STATSD_PREFIX", "from.environment");
+        environment.put("CLOUDINSIGHT_STATSD_PORT", String.valueOf(STATSD_SERVER_PORT));
+        environment.put("CLOUDINSIGHT_STATSD_TAGS", "app:bar, instance:foo");
+        final CloudInsightStatsDClient configured_client = stopsAfterTest(CloudInsightStatsDClient.builder()
+                .port(STATSD_SERVER_PORT + 1)
+                .configure(properties, environment)
+                .build());
+        configured_client.count("mycount", 24);
+        server.awaitMessages(1);
+        configured_client.stop();
+
+        assertThat(server.messagesReceived(), contains("from.properties.mycount:24|c|#instance:foo,app:bar"));
+    }
+
+    @Test(timeout = 5000L)
+    public void configures_tags_cardinality_and_spilling_from_environment() throws Exception {
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("CLOUDINSIGHT_STATSD_PORT", String.valueOf(STATSD_SERVER_PORT));
+        environment.put("CLOUDINSIGHT_STATSD_CANONICAL_TAGS", "true");
+        environment.put("CLOUDINSIGHT_STATSD_CARDINALITY_LIMIT", "1");
+        environment.put("CLOUDINSIGHT_STATSD_CARDINALITY_POLICY", "collapse");
+        environment.put("CLOUDINSIGHT_STATSD_SPILL_DIRECTORY", folder.getRoot().getPath());
+        environment.put("CLOUDINSIGHT_STATSD_SPILL_MAX_BYTES", "65536");
+        final CloudInsightStatsDClient configured_client = stopsAfterTest(CloudInsightStatsDClient.builder()
+                .configure(new HashMap<String, String>(), environment)
+                .build());
+        configured_client.count("mycount", 1, "b:2", "a:1");
+        configured_client.count("mycount", 2, "id:9");
+        server.awaitMessages(2);
+
+        assertThat(server.messagesReceived(), contains("mycount:1|c|#a:1,b:2", "mycount:2|c|#cardinality:overflow"));
+        assertTrue(new File(folder.getRoot(), "sender-0.spill").exists());
+    }
+
+    @Test
+    public void needs_the_spill_size_with_the_spill_directory() throws Exception {
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("CLOUDINSIGHT_STATSD_SPILL_DIRECTORY", "/tmp");
+        try {
+            CloudInsightStatsDClient.builder().configure(new HashMap<String, String>(), environment);
+            throw new AssertionError("accepted a spill directory without a size");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("Invalid CLOUDINSIGHT_STATSD_SPILL_DIRECTORY '/tmp': needs spill.max.bytes as well"));
+        }
+    }
+
+    @Test(expected = StatsDClientException.class)
+    public void constructor_reports_an_invalid_port_as_a_client_exception() throws Exception {
+        new CloudInsightStatsDClient("my.prefix", "localhost", 0);
+    }
+
+    @Test
+    public void names_the_source_of_an_invalid_setting() throws Exception {
+        Map<String, String> environment = new HashMap<String, String>();
+        environment.put("CLOUDINSIGHT_STATSD_AGGREGATION", "yes");
+        try {
+            CloudInsightStatsDClient.builder().configure(new HashMap<String, String>(), environment);
+            throw new AssertionError("accepted an invalid setting");
+        } catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), is("Invalid CLOUDINSIGHT_STATSD_AGGREGATION 'yes': expected true or false"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_udp_packets_larger_than_a_datagram() throws Exception {
+        CloudInsightStatsDClient.builder().port(STATSD_SERVER_PORT).maxPacketSize(65508).build();
+    }
 }
@@ -5,23 +5,56 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 final class DummyStatsDServer {
-    private final List<String>   messagesReceived = new ArrayList<String>();
+    /** How long the await methods wait before they fail the test. */
+    private static final long    AWAIT_TIMEOUT_MS = 5000L;
+
+    private final Queue<String>  messagesReceived = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger  messageCount     = new AtomicInteger();
+    private final Queue<Integer> packetSizes      = new ConcurrentLinkedQueue<Integer>();
+    private final ConcurrentMap<Integer, Queue<String>> messagesBySender = new ConcurrentHashMap<Integer, Queue<String>>();
     private final DatagramSocket server;
+    private final Thread         thread;
 
     public DummyStatsDServer(int port) throws SocketException {
         server = new DatagramSocket(port);
-        Thread thread = new Thread(new Runnable() {
+        // room for bursts of small packets while the receiving thread is descheduled
+        server.setReceiveBufferSize(4 * 1024 * 1024);
+        thread = new Thread(new Runnable() {
             public void run() {
+                final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
                 while (!server.isClosed()) {
                     try {
-                        final DatagramPacket packet = new DatagramPacket(new byte[1500], 1500);
+                        packet.setLength(packet.getData().length);
                         server.receive(packet);
-                        for (String msg : new String(packet.getData(), CloudInsightStatsDClient.MESSAGE_CHARSET).split("\n")) {
+                        if (packet.getLength() == 0) {
+                            // a probe of a spilling client
+                            continue;
+                        }
+                        packetSizes.add(packet.getLength());
+                        Queue<String> fromSender = messagesBySender.get(packet.getPort());
+                        if (fromSender == null) {
+                            messagesBySender.putIfAbsent(packet.getPort(), new ConcurrentLinkedQueue<String>());
+                            fromSender = messagesBySender.get(packet.getPort());
+                        }
+                        for (String msg : new String(packet.getData(), 0, packet.getLength(), CloudInsightStatsDClient.MESSAGE_CHARSET).split("\n")) {
                             messagesReceived.add(msg.trim());
+                            fromSender.add(msg.trim());
+                            messageCount.incrementAndGet();
+                        }
+                        synchronized (DummyStatsDServer.this) {
+                            DummyStatsDServer.this.notifyAll();
                         }
                     } catch (IOException e) {
                     }
@@ -32,12 +65,39 @@ final class DummyStatsDServer {
         thread.start();
     }
 
-    public void waitForMessage() {
-        while (messagesReceived.isEmpty()) {
-            try {
-                Thread.sleep(50L);
-            } catch (InterruptedException e) {
+    public void waitForMessage() throws InterruptedException {
+        awaitMessages(1);
+    }
+
+    /**
+     * Waits until at least {@code count} lines arrived.
+     *
+     * @throws AssertionError if they did not within five seconds
+     */
+    public synchronized void awaitMessages(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_TIMEOUT_MS);
+        while (messageCount.get() < count) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new AssertionError(String.format("Received %d of %d lines within %d ms", messageCount.get(), count, AWAIT_TIMEOUT_MS));
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Waits until {@code line} arrived.
+     *
+     * @throws AssertionError if it did not within five seconds
+     */
+    public synchronized void awaitMessage(String line) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_TIMEOUT_MS);
+        while (!messagesReceived.contains(line)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new AssertionError(String.format("Did not receive %s within %d ms", line, AWAIT_TIMEOUT_MS));
             }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
         }
     }
 
@@ -45,8 +105,29 @@ final class DummyStatsDServer {
         return new ArrayList<String>(messagesReceived);
     }
 
+    public List<Integer> packetSizes() {
+        return new ArrayList<Integer>(packetSizes);
+    }
+
+    /**
+     * The lines received so far, by the source port of the channel that sent them.
+     */
+    public Map<Integer, List<String>> messagesBySender() {
+        Map<Integer, List<String>> copy = new HashMap<Integer, List<String>>();
+        for (Map.Entry<Integer, Queue<String>> sender : messagesBySender.entrySet()) {
+            copy.put(sender.getKey(), new ArrayList<String>(sender.getValue()));
+        }
+        return copy;
+    }
+
     public void close() {
         server.close();
+        try {
+            // the port is only released once the receiving thread left receive(), and the next test binds it again
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 }
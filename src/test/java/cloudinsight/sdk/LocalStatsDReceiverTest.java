@@ -0,0 +1,166 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LocalStatsDReceiverTest {
+
+    private LocalStatsDReceiver      receiver;
+    private CloudInsightStatsDClient client;
+
+    @Before
+    public void start() throws Exception {
+        receiver = new LocalStatsDReceiver(0);
+        client = CloudInsightStatsDClient.builder()
+                .prefix("my.prefix").hostname("localhost").port(receiver.port())
+                .constantTags("app:bar")
+                .build();
+    }
+
+    @After
+    public void stop() throws Exception {
+        client.stop();
+        receiver.close();
+    }
+
+    @Test
+    public void parses_metric_lines() {
+        ReceivedMetric metric = ReceivedMetric.parse("my.count:-12.5|c|@0.25|#foo:bar,baz");
+
+        assertThat(metric.getName(), is("my.count"));
+        assertThat(metric.getValue(), is("-12.5"));
+        assertEquals(-12.5, metric.getDoubleValue(), 0);
+        assertThat(metric.getType(), is(MetricType.COUNTER));
+        assertEquals(0.25, metric.getSampleRate(), 0);
+        assertThat(metric.getTags(), contains("foo:bar", "baz"));
+        assertThat(ReceivedMetric.parse("users:alice|s").getType(), is(MetricType.SET));
+        assertThat(ReceivedMetric.parse("my.time:0.000123|ms").getDoubleValue(), is(0.000123));
+        assertThat(ReceivedMetric.parse("my.gauge:1.5e3|g|c:abc").getDoubleValue(), is(1500d));
+        assertThat(ReceivedMetric.parse("my.gauge:1|g").getTags(), is(empty()));
+        assertThat(ReceivedMetric.parse("my.gauge:-\u221E|g").getDoubleValue(), is(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_lines_without_a_known_type() {
+        ReceivedMetric.parse("my.count:1|x");
+    }
+
+    @Test(timeout = 5000L)
+    public void receives_lines_sent_by_the_client() throws Exception {
+        client.count("mycount", 24, "foo:bar");
+        client.gauge("mygauge", 1.5);
+        client.gauge("mygauge", 2.5);
+        client.recordServiceCheck(ServiceCheck.builder().name("my.check").status(ServiceCheck.Status.OK).build());
+
+        receiver.awaitMetricLines(3, 2, TimeUnit.SECONDS);
+        receiver.assertReceived("my.prefix.mycount:24|c|#app:bar,foo:bar");
+        receiver.assertTotal("my.prefix.mycount", 24, 0);
+        receiver.assertNoMalformedLines();
+        assertEquals(2.5, receiver.series("my.prefix.mygauge").getLastValue(), 0);
+        assertThat(receiver.metrics("my.prefix.mygauge"), hasSize(2));
+        assertThat(receiver.metrics().get(0).hasTag("foo:bar"), is(true));
+        while (receiver.getEventAndServiceCheckLines() == 0) {
+            Thread.sleep(10L);
+        }
+        assertThat(receiver.eventsAndServiceChecks(), contains("_sc|my.check|0|#app:bar"));
+    }
+
+    @Test(timeout = 10000L)
+    public void keeps_totals_beyond_the_retained_lines() throws Exception {
+        LocalStatsDReceiver totalsOnly = new LocalStatsDReceiver(0, 10);
+        CloudInsightStatsDClient loadClient = CloudInsightStatsDClient.builder()
+                .hostname("localhost").port(totalsOnly.port())
+                .overflowPolicy(OverflowPolicy.BLOCK)
+                .build();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                loadClient.count("load.count", 1);
+            }
+            totalsOnly.awaitMetricLines(1000, 5, TimeUnit.SECONDS);
+
+            assertThat(totalsOnly.metrics(), hasSize(10));
+            assertEquals(1000, totalsOnly.series("load.count").getLines());
+            totalsOnly.assertTotal("load.count", 1000, 0);
+        } finally {
+            loadClient.stop();
+            totalsOnly.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void counts_lines_beyond_the_series_limit() throws Exception {
+        LocalStatsDReceiver fewSeries = new LocalStatsDReceiver(0, 0, 2);
+        CloudInsightStatsDClient limitedClient = CloudInsightStatsDClient.builder()
+                .hostname("localhost").port(fewSeries.port())
+                .build();
+        try {
+            for (int i = 0; i < 4; i++) {
+                limitedClient.count("count." + i, 1);
+            }
+            limitedClient.count("count.0", 1);
+            fewSeries.awaitMetricLines(5, 2, TimeUnit.SECONDS);
+
+            assertThat(fewSeries.allSeries(), hasSize(2));
+            fewSeries.assertTotal("count.0", 2, 0);
+            assertThat(fewSeries.series("count.3"), is(nullValue()));
+            assertEquals(2, fewSeries.getUntrackedLines());
+            assertEquals(5, fewSeries.getMetricLines());
+        } finally {
+            limitedClient.stop();
+            fewSeries.close();
+        }
+    }
+
+    @Test(timeout = 5000L)
+    public void forgets_everything_on_clear() throws Exception {
+        client.count("mycount", 24);
+        receiver.awaitMetricLines(1, 2, TimeUnit.SECONDS);
+        receiver.clear();
+
+        assertThat(receiver.metrics(), is(empty()));
+        assertEquals(0, receiver.getMetricLines());
+        assertThat(receiver.series("my.prefix.mycount"), is(nullValue()));
+        client.count("mycount", 3);
+        receiver.awaitMetricLines(1, 2, TimeUnit.SECONDS);
+        receiver.assertTotal("my.prefix.mycount", 3, 0);
+    }
+
+    @Test(timeout = 5000L)
+    public void reads_the_infinite_values_the_client_sends() throws Exception {
+        client.gauge("up", Double.POSITIVE_INFINITY);
+        client.histogram("down", Double.NEGATIVE_INFINITY);
+
+        receiver.awaitMetricLines(2, 2, TimeUnit.SECONDS);
+        receiver.assertNoMalformedLines();
+        assertThat(receiver.series("my.prefix.up").getLastValue(), is(Double.POSITIVE_INFINITY));
+        assertThat(receiver.series("my.prefix.down").getLastValue(), is(Double.NEGATIVE_INFINITY));
+    }
+
+    @Test(timeout = 5000L)
+    public void counts_malformed_lines() throws Exception {
+        client.count("good", 1);
+        client.count("bad:name", 1);
+
+        receiver.awaitMetricLines(1, 2, TimeUnit.SECONDS);
+        while (receiver.getMalformedLines() == 0) {
+            Thread.sleep(10L);
+        }
+        try {
+            receiver.assertNoMalformedLines();
+            throw new IllegalStateException("accepted a malformed line");
+        } catch (AssertionError e) {
+            assertThat(e.getMessage(), is("Received 1 malformed lines"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cloudinsight.sdk;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MessageEncoderTest {
+
+    private static final int               STATSD_SERVER_PORT = 17256;
+    private static final String[]          TAGS               = new String[] {"foo:bar", "baz", "ünïcødé:☃"};
+    private final Random                   random             = new Random(42);
+    private final MessageEncoder           encoder            = new MessageEncoder(4);
+    private final CloudInsightStatsDClient client             = new CloudInsightStatsDClient("my.prefix", "localhost", STATSD_SERVER_PORT, "instance:foo", "app:bar");
+
+    @After
+    public void stop() {
+        client.stop();
+    }
+
+    /**
+     * The formatter the client used before the hand-written encoder, kept here as the reference output.
+     */
+    private static NumberFormat legacyFormatter() {
+        NumberFormat numberFormatter = NumberFormat.getInstance(Locale.US);
+        numberFormatter.setGroupingUsed(false);
+        numberFormatter.setMaximumFractionDigits(6);
+        final DecimalFormat decimalFormat = (DecimalFormat) numberFormatter;
+        final DecimalFormatSymbols symbols = decimalFormat.getDecimalFormatSymbols();
+        symbols.setNaN("NaN");
+        decimalFormat.setDecimalFormatSymbols(symbols);
+        return numberFormatter;
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    private void assertDoubleParity(NumberFormat formatter, double value) {
+        assertArrayEquals(String.valueOf(value), bytes(formatter.format(value)), encoder.reset().writeDouble(value).toByteArray());
+    }
+
+    @Test
+    public void writes_longs_like_string_format() {
+        long[] values = {0, 1, -1, 9, 10, 99, 100, 123456789, -987654321012L, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1};
+        for (long value : values) {
+            assertArrayEquals(bytes(String.format("%d", value)), encoder.reset().writeLong(value).toByteArray());
+        }
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertArrayEquals(bytes(String.format("%d", value)), encoder.reset().writeLong(value).toByteArray());
+        }
+    }
+
+    @Test
+    public void writes_edge_case_doubles_like_number_formatter() {
+        NumberFormat formatter = legacyFormatter();
+        double[] values = {0d, -0d, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MAX_VALUE, Double.MIN_VALUE,
+                -Double.MIN_VALUE, 0.423, 123.45678901234567890, 123456789012345.67890, 1e-7, -1e-9, 5e-7, 1.5e-6, 2.5e-6, -2.5e-6,
+                0.1 + 0.2, 9.999999999, -9.9999999, 1e15, 1e15 + 0.5, 1e20, 1L << 53, 0.0000005, 0.0000015, 1234567.0000005};
+        for (double value : values) {
+            assertDoubleParity(formatter, value);
+        }
+    }
+
+    @Test
+    public void writes_random_doubles_like_number_formatter() {
+        NumberFormat formatter = legacyFormatter();
+        for (int i = 0; i < 200000; i++) {
+            double magnitude = Math.pow(10, random.nextInt(40) - 20);
+            assertDoubleParity(formatter, (random.nextDouble() - 0.5) * magnitude);
+        }
+        for (int i = 0; i < 100000; i++) {
+            // values sitting exactly on the 6th fraction digit, where rounding ties happen
+            assertDoubleParity(formatter, (random.nextInt(2000000) - 1000000) / 2000000d);
+            assertDoubleParity(formatter, random.nextInt(100000) + random.nextInt(1000) / 1000d);
+        }
+    }
+
+    @Test
+    public void writes_strings_like_get_bytes() {
+        String[] values = {"", "plain.ascii", "ünïcødé", "☃ snow", "emoji 😀 face", "unpaired \ud83d high", "unpaired \ude00 low", "trailing \ud83d"};
+        for (String value : values) {
+            assertArrayEquals(value, bytes(value), encoder.reset().writeString(value).toByteArray());
+        }
+    }
+
+    @Test
+    public void encodes_lines_like_string_format() {
+        NumberFormat formatter = legacyFormatter();
+        String[][] tagSets = {null, new String[0], TAGS, new String[] {"single"}};
+        for (String[] tags : tagSets) {
+            String tagString = client.tagString(tags);
+
+            assertArrayEquals(bytes(String.format("%s%s:%d|c%s", "my.prefix.", "mycount", 24L, tagString)),
+                    client.encode("mycount", 24L, MetricType.COUNTER, tags).toByteArray());
+            assertArrayEquals(bytes(String.format("%s%s:%d|g%s", "my.prefix.", "mygauge", -423L, tagString)),
+                    client.encode("mygauge", -423L, MetricType.GAUGE, tags).toByteArray());
+            assertArrayEquals(bytes(String.format("%s%s:%s|g%s", "my.prefix.", "mygauge", formatter.format(0.423), tagString)),
+                    client.encode("mygauge", 0.423, MetricType.GAUGE, tags).toByteArray());
+            assertArrayEquals(bytes(String.format("%s%s:%d|ms%s", "my.prefix.", "mytime", 123L, tagString)),
+                    client.encode("mytime", 123L, MetricType.TIMER, tags).toByteArray());
+            assertArrayEquals(bytes(String.format("%s%s:%s|h%s", "my.prefix.", "ünïcødé.histogram", formatter.format(Double.NaN), tagString)),
+                    client.encode("ünïcødé.histogram", Double.NaN, MetricType.HISTOGRAM, tags).toByteArray());
+        }
+    }
+}
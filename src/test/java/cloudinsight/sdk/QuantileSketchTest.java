@@ -0,0 +1,158 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class QuantileSketchTest {
+
+    private static final double            RELATIVE_ERROR = 1d / 128;
+    private final QuantileSketch.Snapshot snapshot       = new QuantileSketch.Snapshot();
+
+    private static void assertWithinRelativeError(double expected, double actual) {
+        assertEquals(expected, actual, Math.abs(expected) * RELATIVE_ERROR);
+    }
+
+    private static double exactQuantile(double[] sorted, double quantile) {
+        return sorted[(int) Math.max(0, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    @Test
+    public void reports_quantiles_within_relative_error() {
+        Random random = new Random(7);
+        QuantileSketch sketch = new QuantileSketch();
+        double[] values = new double[100000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal, like request latencies
+            values[i] = Math.exp(random.nextGaussian() * 2 + 3);
+            sketch.record(values[i]);
+        }
+        sketch.drainTo(snapshot);
+        Arrays.sort(values);
+
+        assertEquals(values.length, snapshot.count);
+        assertEquals(values[0], snapshot.min, 0);
+        assertEquals(values[values.length - 1], snapshot.max, 0);
+        for (double quantile : new double[] {0.5, 0.95, 0.99}) {
+            assertWithinRelativeError(exactQuantile(values, quantile), snapshot.quantile(quantile));
+        }
+    }
+
+    @Test
+    public void orders_negative_zero_and_positive_values() {
+        QuantileSketch sketch = new QuantileSketch();
+        for (double value : new double[] {-100, -10, 0, 0, 10, 100}) {
+            sketch.record(value);
+        }
+        sketch.drainTo(snapshot);
+
+        assertEquals(-100, snapshot.quantile(0.1), 0);
+        assertWithinRelativeError(-10, snapshot.quantile(0.3));
+        assertEquals(0, snapshot.quantile(0.5), 0);
+        assertWithinRelativeError(10, snapshot.quantile(0.8));
+        assertEquals(100, snapshot.quantile(1), 0);
+        assertEquals(0, snapshot.average(), 0);
+    }
+
+    @Test
+    public void resets_after_drain() {
+        QuantileSketch sketch = new QuantileSketch();
+        sketch.record(42);
+        sketch.drainTo(snapshot);
+        assertEquals(0, sketch.count());
+
+        sketch.drainTo(snapshot);
+        assertEquals(0, snapshot.count);
+        assertEquals(0, snapshot.quantile(0.5), 0);
+    }
+
+    @Test
+    public void merges_sketches() {
+        QuantileSketch low = new QuantileSketch();
+        QuantileSketch high = new QuantileSketch();
+        for (int i = 1; i <= 50; i++) {
+            low.record(i);
+            high.record(i + 50);
+        }
+        low.merge(high);
+        low.drainTo(snapshot);
+
+        assertEquals(100, snapshot.count);
+        assertEquals(1, snapshot.min, 0);
+        assertEquals(100, snapshot.max, 0);
+        assertWithinRelativeError(50, snapshot.quantile(0.5));
+        assertEquals(50, high.count());
+    }
+
+    @Test(timeout = 20000L)
+    public void counts_concurrent_records_exactly() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch();
+        final int threads = 8;
+        final int perThread = 100000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= perThread; i++) {
+                        sketch.record(i);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(15, TimeUnit.SECONDS);
+        sketch.drainTo(snapshot);
+
+        assertEquals(threads * perThread, snapshot.count);
+        assertEquals(perThread, snapshot.max, 0);
+        assertWithinRelativeError(perThread / 2, snapshot.quantile(0.5));
+    }
+
+    @Test(timeout = 20000L)
+    public void keeps_every_value_recorded_while_draining() throws Exception {
+        final QuantileSketch sketch = new QuantileSketch();
+        final int threads = 4;
+        final int perThread = 200000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= perThread; i++) {
+                        sketch.record(i);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        long count = 0;
+        double sum = 0;
+        boolean recording = true;
+        while (recording) {
+            recording = !executor.awaitTermination(1, TimeUnit.MILLISECONDS);
+            sketch.drainTo(snapshot);
+            count += snapshot.count;
+            sum += snapshot.sum;
+            if (snapshot.count > 0) {
+                assertThat(snapshot.min, is(greaterThanOrEqualTo(1d)));
+                assertThat(snapshot.min, is(lessThanOrEqualTo(snapshot.max)));
+                assertThat(snapshot.max, is(lessThan(perThread * (1 + RELATIVE_ERROR))));
+            }
+        }
+        sketch.drainTo(snapshot);
+
+        assertEquals(threads * perThread, count + snapshot.count);
+        assertEquals(threads * (perThread * (perThread + 1d) / 2), sum + snapshot.sum, 0);
+        assertEquals(0, sketch.count());
+    }
+}
@@ -0,0 +1,190 @@
+package cloudinsight.sdk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+public class RingBufferTest {
+
+    @Test
+    public void rounds_capacity_up_to_power_of_two() {
+        assertEquals(2, new RingBuffer<String>(1).capacity());
+        assertEquals(4, new RingBuffer<String>(3).capacity());
+        assertEquals(1024, new RingBuffer<String>(1000).capacity());
+    }
+
+    @Test
+    public void rejects_offers_when_full() {
+        RingBuffer<String> ring = new RingBuffer<String>(2);
+        assertTrue(ring.offer("a"));
+        assertTrue(ring.offer("b"));
+        assertFalse(ring.offer("c"));
+        assertEquals(2, ring.size());
+
+        assertEquals("a", ring.peek());
+        assertEquals("a", ring.poll());
+        assertTrue(ring.offer("c"));
+        assertEquals("b", ring.poll());
+        assertEquals("c", ring.poll());
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(timeout = 5000L)
+    public void times_out_blocking_offer_when_full() {
+        RingBuffer<String> ring = new RingBuffer<String>(2);
+        assertTrue(ring.offer("a"));
+        assertTrue(ring.offer("a"));
+        long start = System.nanoTime();
+        assertFalse(ring.offer("b", 20, TimeUnit.MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test(timeout = 5000L)
+    public void wakes_waiting_consumer_on_offer() throws Exception {
+        final RingBuffer<String> ring = new RingBuffer<String>(4);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(50L);
+                } catch (InterruptedException e) {
+                }
+                ring.offer("late");
+            }
+        });
+        producer.start();
+        assertEquals("late", ring.poll(4, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 30000L)
+    public void wakes_parked_consumer_for_every_single_offer() throws Exception {
+        final int rounds = 5000;
+        final RingBuffer<Long> ring = new RingBuffer<Long>(4);
+        final AtomicLong consumed = new AtomicLong();
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (long i = 0; i < rounds; i++) {
+                    while (consumed.get() < i) {
+                        Thread.yield();
+                    }
+                    // give the consumer a varying head start, so offers land before, during and after it parks
+                    LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(50000L));
+                    ring.offer(System.nanoTime());
+                }
+            }
+        });
+        producer.start();
+
+        long slowest = 0;
+        for (int i = 0; i < rounds; i++) {
+            Long offeredAt = ring.poll(10, TimeUnit.SECONDS);
+            slowest = Math.max(slowest, System.nanoTime() - offeredAt);
+            consumed.incrementAndGet();
+        }
+        producer.join();
+        assertTrue("slowest hand-over took " + slowest + " ns", slowest < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void drains_up_to_batch_size_in_order() {
+        RingBuffer<String> ring = new RingBuffer<String>(8);
+        ring.offer("a");
+        ring.offer("b");
+        ring.offer("c");
+        String[] batch = new String[2];
+        assertEquals(2, ring.drainTo(batch));
+        assertEquals("a", batch[0]);
+        assertEquals("b", batch[1]);
+        assertEquals(1, ring.drainTo(batch));
+        assertEquals("c", batch[0]);
+        assertEquals(0, ring.drainTo(batch));
+    }
+
+    @Test
+    public void hands_over_preallocated_slots() {
+        RingBuffer<StringBuilder> ring = new RingBuffer<StringBuilder>(2, new Supplier<StringBuilder>() {
+            public StringBuilder get() {
+                return new StringBuilder();
+            }
+        });
+        long first = ring.claim();
+        ring.slot(first).append("a");
+        assertTrue(ring.isEmpty());
+        ring.publish(first);
+        long second = ring.claim();
+        ring.slot(second).append("b");
+        ring.publish(second);
+        assertEquals(-1, ring.claim());
+
+        long oldest = ring.claimOldest();
+        assertEquals("a", ring.slot(oldest).toString());
+        ring.slot(oldest).setLength(0);
+        ring.release(oldest);
+        long third = ring.claim();
+        assertTrue(third >= 0);
+        assertEquals("", ring.slot(third).toString());
+        ring.publish(third);
+        assertEquals("b", ring.slot(ring.claimOldest()).toString());
+    }
+
+    @Test(timeout = 5000L)
+    public void wake_up_ends_wait_on_empty_ring() throws Exception {
+        RingBuffer<String> ring = new RingBuffer<String>(4);
+        ring.wakeUp();
+        assertNull(ring.poll(1, TimeUnit.MINUTES));
+    }
+
+    @Test(timeout = 20000L)
+    public void delivers_every_element_once_across_producers() throws Exception {
+        final int producers = 8;
+        final int perProducer = 100000;
+        final RingBuffer<Long> ring = new RingBuffer<Long>(256);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            final long base = (long) p * perProducer;
+            executor.submit(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        while (!ring.offer(base + i)) {
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+        }
+        start.countDown();
+
+        boolean[] seen = new boolean[producers * perProducer];
+        long[] lastPerProducer = new long[producers];
+        Arrays.fill(lastPerProducer, -1);
+        for (int received = 0; received < seen.length; received++) {
+            Long value = ring.poll(5, TimeUnit.SECONDS);
+            int producer = (int) (value / perProducer);
+            assertFalse(seen[value.intValue()]);
+            assertTrue("per-producer order must be kept", value > lastPerProducer[producer]);
+            seen[value.intValue()] = true;
+            lastPerProducer[producer] = value;
+        }
+        executor.shutdown();
+        assertNull(ring.poll());
+    }
+}
@@ -0,0 +1,167 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SpillBufferTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer packet(String lines) {
+        return ByteBuffer.wrap(lines.getBytes(CloudInsightStatsDClient.MESSAGE_CHARSET));
+    }
+
+    private static String read(ByteBuffer packet) {
+        byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        return new String(bytes, CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    @Test
+    public void returns_packets_oldest_first() throws Exception {
+        SpillBuffer spill = new SpillBuffer(folder.newFile("sender-0.spill"), 4096);
+        ByteBuffer replayed = ByteBuffer.allocate(1500);
+        assertTrue(spill.append(packet("a:1|c\nb:2|c")));
+        assertTrue(spill.append(packet("c:3|g")));
+
+        assertTrue(spill.peek(replayed));
+        assertEquals("a:1|c\nb:2|c", read(replayed));
+        spill.remove();
+        assertTrue(spill.peek(replayed));
+        assertEquals("c:3|g", read(replayed));
+        spill.remove();
+        assertTrue(spill.isEmpty());
+        assertFalse(spill.peek(replayed));
+        spill.close();
+    }
+
+    @Test
+    public void drops_packets_that_do_not_fit() throws Exception {
+        SpillBuffer spill = new SpillBuffer(folder.newFile("sender-0.spill"), 64);
+        assertTrue(spill.append(packet("0123456789012345678901234567890123456789")));
+
+        assertFalse(spill.append(packet("0123456789")));
+        spill.close();
+    }
+
+    @Test
+    public void reuses_space_freed_by_replays() throws Exception {
+        SpillBuffer spill = new SpillBuffer(folder.newFile("sender-0.spill"), 64);
+        ByteBuffer replayed = ByteBuffer.allocate(1500);
+        assertTrue(spill.append(packet("a:1|c")));
+        assertTrue(spill.append(packet("b:22|c")));
+        assertTrue(spill.append(packet("c:333|c")));
+        assertTrue(spill.append(packet("d:4444|c")));
+        spill.remove();
+        // the three packets left do not fit in the space freed by the first one
+        assertFalse(spill.append(packet("e:55555|c")));
+        spill.remove();
+        spill.remove();
+
+        assertTrue(spill.append(packet("e:55555|c")));
+        assertTrue(spill.peek(replayed));
+        assertEquals("d:4444|c", read(replayed));
+        spill.remove();
+        assertTrue(spill.peek(replayed));
+        assertEquals("e:55555|c", read(replayed));
+        spill.close();
+    }
+
+    @Test
+    public void keeps_packets_across_reopen() throws Exception {
+        File file = folder.newFile("sender-0.spill");
+        SpillBuffer spill = new SpillBuffer(file, 4096);
+        spill.append(packet("a:1|c"));
+        spill.append(packet("b:2|c"));
+        spill.peek(ByteBuffer.allocate(1500));
+        spill.remove();
+        spill.close();
+
+        SpillBuffer reopened = new SpillBuffer(file, 4096);
+        ByteBuffer replayed = ByteBuffer.allocate(1500);
+        assertTrue(reopened.peek(replayed));
+        assertEquals("b:2|c", read(replayed));
+        reopened.remove();
+        assertTrue(reopened.isEmpty());
+        reopened.close();
+    }
+
+    private static void overwriteInt(File file, long offset, int value) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.writeInt(value);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void starts_over_after_a_corrupt_header() throws Exception {
+        File file = folder.newFile("sender-0.spill");
+        SpillBuffer spill = new SpillBuffer(file, 4096);
+        spill.append(packet("a:1|c"));
+        spill.close();
+        // a write offset past the end of the segment
+        overwriteInt(file, 8, 8192);
+
+        SpillBuffer reopened = new SpillBuffer(file, 4096);
+        ByteBuffer replayed = ByteBuffer.allocate(1500);
+        assertTrue(reopened.isEmpty());
+        assertTrue(reopened.append(packet("b:2|c")));
+        assertTrue(reopened.peek(replayed));
+        assertEquals("b:2|c", read(replayed));
+        reopened.close();
+    }
+
+    @Test
+    public void drops_the_segment_at_a_corrupt_entry() throws Exception {
+        File file = folder.newFile("sender-0.spill");
+        for (int length : new int[] {-5, 4096}) {
+            SpillBuffer spill = new SpillBuffer(file, 4096);
+            spill.append(packet("a:1|c"));
+            spill.append(packet("b:2|c"));
+            spill.close();
+            overwriteInt(file, SpillBuffer.HEADER_SIZE, length);
+
+            SpillBuffer reopened = new SpillBuffer(file, 4096);
+            ByteBuffer replayed = ByteBuffer.allocate(8192);
+            assertFalse(reopened.peek(replayed));
+            assertTrue(reopened.isEmpty());
+            reopened.remove();
+            assertTrue(reopened.append(packet("c:3|c")));
+            assertTrue(reopened.peek(replayed));
+            assertEquals("c:3|c", read(replayed));
+            reopened.remove();
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void refuses_a_file_another_buffer_holds() throws Exception {
+        File file = folder.newFile("sender-0.spill");
+        SpillBuffer spill = new SpillBuffer(file, 4096);
+        try {
+            new SpillBuffer(file, 4096);
+            throw new IllegalStateException("opened a locked spill file");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), containsString("used by another client"));
+        } finally {
+            spill.close();
+        }
+        new SpillBuffer(file, 4096).close();
+    }
+}
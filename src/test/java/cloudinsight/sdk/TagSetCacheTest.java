@@ -0,0 +1,71 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TagSetCacheTest {
+
+    private static String suffix(TagSetCache cache, String... tags) {
+        return new String(cache.suffix(tags), CloudInsightStatsDClient.MESSAGE_CHARSET);
+    }
+
+    @Test
+    public void sorts_and_deduplicates_tags() {
+        TagSetCache cache = new TagSetCache(new String[] {"env:prod"}, 16);
+
+        assertThat(suffix(cache, "b:2", "a:1"), is("|#a:1,b:2,env:prod"));
+        assertThat(suffix(cache, "a:1", "b:2", "a:1", "env:prod"), is("|#a:1,b:2,env:prod"));
+        assertThat(suffix(cache), is("|#env:prod"));
+        assertThat(suffix(new TagSetCache(null, 16)), is(""));
+    }
+
+    @Test
+    public void renders_known_tag_set_once() {
+        TagSetCache cache = new TagSetCache(null, 16);
+        byte[] first = cache.suffix(new String[] {"a:1", "b:2"});
+
+        assertThat(cache.suffix(new String[] {"a:1", "b:2"}), sameInstance(first));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void evicts_least_recently_used_tag_sets() {
+        TagSetCache cache = new TagSetCache(null, 4);
+        byte[] hot = cache.suffix(new String[] {"hot:1"});
+        for (int i = 0; i < 100; i++) {
+            cache.suffix(new String[] {"cold:" + i});
+            cache.suffix(new String[] {"hot:1"});
+        }
+
+        assertEquals(4, cache.size());
+        assertThat(cache.suffix(new String[] {"hot:1"}), sameInstance(hot));
+    }
+
+    @Test
+    public void evicts_the_unused_tag_set_wherever_it_is_cached() {
+        TagSetCache cache = new TagSetCache(null, 64);
+        byte[][] suffixes = new byte[64][];
+        for (int i = 0; i < 64; i++) {
+            suffixes[i] = cache.suffix(new String[] {"tag:" + i});
+        }
+        for (int i = 0; i < 64; i++) {
+            if (i != 40) {
+                cache.suffix(new String[] {"tag:" + i});
+            }
+        }
+        cache.suffix(new String[] {"tag:new"});
+
+        assertEquals(64, cache.size());
+        for (int i = 0; i < 64; i++) {
+            if (i != 40) {
+                assertThat(cache.suffix(new String[] {"tag:" + i}), sameInstance(suffixes[i]));
+            }
+        }
+        assertThat(cache.suffix(new String[] {"tag:40"}), not(sameInstance(suffixes[40])));
+    }
+}
@@ -0,0 +1,76 @@
+package cloudinsight.sdk;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import jnr.unixsocket.UnixDatagramChannel;
+import jnr.unixsocket.UnixSocketAddress;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnixDatagramTransportTest {
+
+    private File                socket;
+    private UnixDatagramChannel server;
+
+    @Before
+    public void start() throws Exception {
+        socket = File.createTempFile("statsd", ".sock");
+        socket.delete();
+        server = UnixDatagramChannel.open();
+        server.bind(new UnixSocketAddress(socket));
+    }
+
+    @After
+    public void stop() throws Exception {
+        server.close();
+        socket.delete();
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_packets_larger_than_udp_mtu() throws Exception {
+        Transport transport = UnixDatagramTransport.factory(socket.getPath(), UnixDatagramTransport.DEFAULT_MAX_PACKET_SIZE).open();
+        byte[] payload = new byte[transport.maxPacketSize()];
+        Arrays.fill(payload, (byte) 'x');
+        try {
+            assertEquals(payload.length, transport.send(ByteBuffer.wrap(payload)));
+        } finally {
+            transport.close();
+        }
+
+        ByteBuffer received = ByteBuffer.allocate(payload.length * 2);
+        server.receive(received);
+        assertEquals(payload.length, received.position());
+    }
+
+    @Test(timeout = 5000L)
+    public void sends_client_lines_over_unix_socket() throws Exception {
+        CloudInsightStatsDClient client = CloudInsightStatsDClient.builder()
+                .prefix("my.prefix")
+                .unixSocket(socket.getPath())
+                .build();
+        client.count("mycount", 24, "foo:bar");
+        client.gauge("mygauge", 0.5);
+
+        List<String> lines = new ArrayList<String>();
+        ByteBuffer received = ByteBuffer.allocate(UnixDatagramTransport.DEFAULT_MAX_PACKET_SIZE);
+        while (lines.size() < 2) {
+            received.clear();
+            server.receive(received);
+            received.flip();
+            lines.addAll(Arrays.asList(CloudInsightStatsDClient.MESSAGE_CHARSET.decode(received).toString().split("\n")));
+        }
+        client.stop();
+
+        assertThat(lines, contains("my.prefix.mycount:24|c|#foo:bar", "my.prefix.mygauge:0.5|g"));
+    }
+}